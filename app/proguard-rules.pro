@@ -16,6 +16,11 @@
 #   public *;
 #}
 
+# Called from the native library when a stage is published while training progressively
+-keepclassmembers class com.lauszus.facerecognitionapp.NativeMethods$TrainFacesTask {
+    private void onStage(int, float);
+}
+
 -assumenosideeffects class android.util.Log {
     public static *** v(...);
     public static *** i(...);
@@ -11,9 +11,11 @@ LOCAL_MODULE := face-lib
 LOCAL_SRC_FILES += $(LOCAL_PATH)/face-lib.cpp $(LOCAL_PATH)/FaceRecognitionLib/Facebase.cpp
 LOCAL_SRC_FILES += $(LOCAL_PATH)/FaceRecognitionLib/Eigenfaces.cpp $(LOCAL_PATH)/FaceRecognitionLib/Fisherfaces.cpp
 LOCAL_SRC_FILES += $(LOCAL_PATH)/FaceRecognitionLib/PCA.cpp $(LOCAL_PATH)/FaceRecognitionLib/LDA.cpp
+LOCAL_SRC_FILES += $(LOCAL_PATH)/FaceRecognitionLib/HNSW.cpp $(LOCAL_PATH)/FaceRecognitionLib/Cascade.cpp
 LOCAL_C_INCLUDES += $(LOCAL_PATH)/../../../../Eigen3
 LOCAL_C_INCLUDES += $(LOCAL_PATH)/FaceRecognitionLib/RedSVD/include
 LOCAL_LDLIBS += -llog -ldl
-LOCAL_CPPFLAGS += -std=gnu++11 -frtti -fexceptions
+LOCAL_CPPFLAGS += -std=gnu++11 -frtti -fexceptions -fopenmp
+LOCAL_LDFLAGS += -fopenmp
 
 include $(BUILD_SHARED_LIBRARY)
@@ -0,0 +1,123 @@
+/* Copyright (C) 2016 Kristian Sloth Lauszus. All rights reserved.
+
+ This software may be distributed and modified under the terms of the GNU
+ General Public License version 2 (GPL2) as published by the Free Software
+ Foundation and appearing in the file GPL2.TXT included in the packaging of
+ this file. Please note that GPL2 Section 2[b] requires that all works based
+ on this software must also be made publicly available under the terms of
+ the GPL2 ("Copyleft").
+
+ Contact information
+ -------------------
+
+ Kristian Sloth Lauszus
+ Web      :  http://www.lauszus.com
+ e-mail   :  lauszus@gmail.com
+*/
+
+#ifndef __arena_h__
+#define __arena_h__
+
+#include <cassert>
+#include <cstddef>
+#include <cstdint>
+#include <limits>
+#include <Eigen/Dense> // http://eigen.tuxfamily.org
+
+using namespace Eigen;
+
+/**
+ * Buffer holding the temporary matrices used while training. The buffer is kept between trainings, so it is only
+ * allocated once, and the size of the blocks processed at a time is chosen so the memory used never exceeds the budget.
+ * The same arena can be shared by several models as long as they are not trained at the same time.
+ */
+class Arena {
+public:
+    /**
+     * @param budget Maximum number of bytes used while training. Set to 0 in order to disable the budget.
+     */
+    explicit Arena(size_t budget = 0) : memoryBudget(budget) {}
+
+    size_t budget() const {
+        return memoryBudget;
+    }
+
+    /**
+     * Set the memory budget. The buffer is released if it exceeds the new budget.
+     * @param budget Maximum number of bytes used while training. Set to 0 in order to disable the budget.
+     */
+    void setBudget(size_t budget) {
+        memoryBudget = budget;
+        if (memoryBudget != 0 && bytes() > memoryBudget)
+            release();
+    }
+
+    /**
+     * Get the number of floats that can be stored without exceeding the budget.
+     * @param  reservedBytes Bytes of the budget used by temporaries that are not stored in the arena.
+     * @return               Returns the number of floats or the maximum value if there is no budget.
+     */
+    size_t available(size_t reservedBytes = 0) const {
+        if (memoryBudget == 0)
+            return std::numeric_limits<size_t>::max();
+        return memoryBudget > reservedBytes ? (memoryBudget - reservedBytes) / sizeof(float) : 0;
+    }
+
+    /**
+     * Release all matrices allocated from the arena and make sure that the buffer can hold a number of floats.
+     * @param  floats Number of floats needed until the next call to reserve().
+     * @return        Returns false if the budget would be exceeded. Nothing is allocated in that case.
+     */
+    bool reserve(size_t floats) {
+        if (floats > available())
+            return false;
+        used = 0;
+        if ((size_t) buffer.size() < floats) {
+            buffer.resize(0); // Free the old buffer first, so both buffers are never allocated at the same time
+            buffer.resize(floats);
+        }
+        peak = max(peak, bytes());
+        return true;
+    }
+
+    /**
+     * Get a matrix stored in the buffer. The values are not initialized.
+     * @param  rows Number of rows.
+     * @param  cols Number of columns.
+     * @return      Returns a map of the matrix, which is valid until the next call to reserve() or release().
+     */
+    Map<MatrixXf> allocate(Index rows, Index cols) {
+        assert(used + (size_t) (rows*cols) <= (size_t) buffer.size()); // The matrices must be reserved first
+        Map<MatrixXf> matrix(buffer.data() + used, rows, cols);
+        used += (size_t) (rows*cols);
+        return matrix;
+    }
+
+    // Free the buffer
+    void release() {
+        buffer.resize(0);
+        used = 0;
+    }
+
+    // Number of bytes currently allocated by the buffer
+    size_t bytes() const {
+        return sizeof(float)*buffer.size();
+    }
+
+    // Largest number of bytes the buffer has used since the arena was created
+    size_t peakBytes() const {
+        return peak;
+    }
+
+private:
+    static size_t max(size_t a, size_t b) {
+        return a > b ? a : b;
+    }
+
+    size_t memoryBudget;
+    VectorXf buffer;
+    size_t used = 0; // Number of floats allocated since the last call to reserve()
+    size_t peak = 0;
+};
+
+#endif
@@ -0,0 +1,101 @@
+/* Copyright (C) 2016 Kristian Sloth Lauszus. All rights reserved.
+
+ This software may be distributed and modified under the terms of the GNU
+ General Public License version 2 (GPL2) as published by the Free Software
+ Foundation and appearing in the file GPL2.TXT included in the packaging of
+ this file. Please note that GPL2 Section 2[b] requires that all works based
+ on this software must also be made publicly available under the terms of
+ the GPL2 ("Copyleft").
+
+ Contact information
+ -------------------
+
+ Kristian Sloth Lauszus
+ Web      :  http://www.lauszus.com
+ e-mail   :  lauszus@gmail.com
+*/
+
+#include <algorithm>
+#include <chrono>
+
+#include <Eigen/Dense> // http://eigen.tuxfamily.org
+
+#include "Cascade.h"
+
+using namespace std;
+using namespace Eigen;
+
+bool Cascade::train(const Ref<const MatrixXu8> &images, size_t width, size_t height) {
+    assert((size_t) images.rows() == width*height);
+    this->width = width;
+    this->height = height;
+
+    MatrixXu8 small(coarseWidth*coarseHeight, images.cols());
+    #pragma omp parallel for num_threads(nbThreads()) schedule(static)
+    for (Index i = 0; i < images.cols(); i++)
+        downsample(images.col(i), small.col(i));
+    coarse.randomized = small.rows() < small.cols(); // Large galleries have more images than coarse pixels, so the number of components can not be found from the Gram matrix
+    if (!coarse.train(small))
+        return false;
+    gallery = Facebase::hashGallery(images); // The coarse model hashes the downsampled images, so the full resolution images are hashed here
+    probe.resize(small.rows());
+    return true;
+}
+
+void Cascade::add(const Ref<const VectorXu8> &X, size_t n_removed /*= 0*/) {
+    downsample(X, probe);
+    coarse.enroll(probe, 0, n_removed); // The coarse model is only used to find the shortlist, so it is not retrained when it drifts
+    gallery = Facebase::hashGallery(gallery, X, n_removed);
+}
+
+size_t Cascade::nearest(Facebase &fine, const Ref<const VectorXu8> &X, size_t k, int32_t *indices, float *dist, float &faceDist,
+                        float faceThreshold /*= infinity*/) {
+    assert(valid(fine));
+    auto start = chrono::steady_clock::now();
+    downsample(X, probe);
+    const size_t n_shortlist = max(k, shortlistSize);
+    if (shortlist.size() < n_shortlist) {
+        shortlist.resize(n_shortlist);
+        shortlistDist.resize(n_shortlist);
+    }
+    float coarseFaceDist; // The coarse model is not used to reject non-faces, as its distances are not comparable to the threshold
+    const size_t n = coarse.nearest(probe, n_shortlist, shortlist.data(), shortlistDist.data(), coarseFaceDist);
+    auto end = chrono::steady_clock::now();
+    timing.coarse = chrono::duration<double, milli>(end - start).count();
+
+    start = end;
+    const size_t found = fine.nearestAmong(X, shortlist.data(), n, k, indices, dist, faceDist, faceThreshold);
+    timing.fine = chrono::duration<double, milli>(chrono::steady_clock::now() - start).count();
+    return found;
+}
+
+bool Cascade::save(const char *filename, uint64_t hash) {
+    return coarse.save(filename, hash);
+}
+
+bool Cascade::load(const char *filename, uint64_t hash, size_t width, size_t height) {
+    if (!coarse.load(filename, hash) || coarse.V.rows() != (Index) (coarseWidth*coarseHeight))
+        return false;
+    this->width = width;
+    this->height = height;
+    gallery = hash; // The same as the full resolution model loaded with this hash
+    probe.resize(coarseWidth*coarseHeight);
+    return true;
+}
+
+void Cascade::downsample(const Ref<const VectorXu8> &X, Ref<VectorXu8> out) const {
+    assert((size_t) X.size() == width*height && (size_t) out.size() == coarseWidth*coarseHeight);
+    for (size_t y = 0; y < coarseHeight; y++) {
+        const size_t y0 = y*height/coarseHeight, y1 = max((y + 1)*height/coarseHeight, y0 + 1);
+        for (size_t x = 0; x < coarseWidth; x++) {
+            const size_t x0 = x*width/coarseWidth, x1 = max((x + 1)*width/coarseWidth, x0 + 1);
+            uint32_t sum = 0;
+            for (size_t yy = y0; yy < y1; yy++) {
+                for (size_t xx = x0; xx < x1; xx++)
+                    sum += X(yy*width + xx); // The images are stored row by row
+            }
+            const uint32_t n = (y1 - y0)*(x1 - x0);
+            out(y*coarseWidth + x) = (uint8_t) ((sum + n/2)/n);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/* Copyright (C) 2016 Kristian Sloth Lauszus. All rights reserved.
+
+ This software may be distributed and modified under the terms of the GNU
+ General Public License version 2 (GPL2) as published by the Free Software
+ Foundation and appearing in the file GPL2.TXT included in the packaging of
+ this file. Please note that GPL2 Section 2[b] requires that all works based
+ on this software must also be made publicly available under the terms of
+ the GPL2 ("Copyleft").
+
+ Contact information
+ -------------------
+
+ Kristian Sloth Lauszus
+ Web      :  http://www.lauszus.com
+ e-mail   :  lauszus@gmail.com
+*/
+
+#ifndef __cascade_h__
+#define __cascade_h__
+
+#include <cstdint>
+#include <limits>
+#include <vector>
+#include <Eigen/Dense> // http://eigen.tuxfamily.org
+
+#include "Eigenfaces.h"
+#include "Facebase.h"
+
+using namespace Eigen;
+
+/**
+ * Coarse-to-fine recognition. Every image is first compared using Eigenfaces trained on downsampled images,
+ * and only the shortlist found by this cheap model is compared using the full resolution model.
+ */
+class Cascade {
+public:
+    // Time spent in each stage of the last call to nearest()
+    struct Timing {
+        double coarse = 0; // Downsampling and searching the coarse model in ms
+        double fine = 0; // Projecting and comparing with the shortlist using the full resolution model in ms
+    };
+
+    /**
+     * Train the coarse model.
+     * @param  images Each images represented as a column vector.
+     * @param  width  Width of the images.
+     * @param  height Height of the images.
+     * @return        Returns false if the memory budget of the arena used by the coarse model is too small.
+     */
+    bool train(const Ref<const MatrixXu8> &images, size_t width, size_t height);
+
+    /**
+     * Add an image to the coarse model without retraining it.
+     * @param X         Image represented as a column vector.
+     * @param n_removed Number of images to remove from the start of the model.
+     */
+    void add(const Ref<const VectorXu8> &X, size_t n_removed = 0);
+
+    /**
+     * Find the nearest images by comparing with the coarse model first and then with the shortlist using the full resolution model.
+     * @param  fine          Full resolution model. It must contain the same images as the coarse model.
+     * @param  X             Input image.
+     * @param  k             Number of images to find.
+     * @param  indices       Array with room for k indices. The indices are sorted by increasing distance.
+     * @param  dist          Array with room for k distances calculated using the full resolution model.
+     * @param  faceDist      Returns the distance to the face subspace of the full resolution model.
+     * @param  faceThreshold If the distance to the face subspace exceeds this, then no images are returned.
+     * @return               Returns the number of images found.
+     */
+    size_t nearest(Facebase &fine, const Ref<const VectorXu8> &X, size_t k, int32_t *indices, float *dist, float &faceDist,
+                   float faceThreshold = std::numeric_limits<float>::infinity());
+
+    /**
+     * Check if the cascade can be used together with a model.
+     * @param  fine Full resolution model.
+     * @return      Returns true if the coarse model contains the same images as the full resolution model.
+     */
+    bool valid(const Facebase &fine) const {
+        return coarse.numImages() > 0 && coarse.numImages() == fine.numImages() && gallery == fine.galleryHash();
+    }
+
+    /**
+     * Save the coarse model.
+     * @param  filename Path to the model file.
+     * @param  hash     Hash of the data the model was trained on.
+     * @return          Returns true if the model was written successfully.
+     */
+    bool save(const char *filename, uint64_t hash);
+
+    /**
+     * Load a coarse model written by save().
+     * @param  filename Path to the model file.
+     * @param  hash     Hash of the data the model is expected to be trained on.
+     * @param  width    Width of the full resolution images.
+     * @param  height   Height of the full resolution images.
+     * @return          Returns true if the model was loaded.
+     */
+    bool load(const char *filename, uint64_t hash, size_t width, size_t height);
+
+    /**
+     * Release the data only needed for training the coarse model. See Facebase::compact().
+     * @param halfPrecision Store the eigenvectors in half precision.
+     */
+    void compact(bool halfPrecision = false) {
+        coarse.compact(halfPrecision);
+    }
+
+    /**
+     * Copy only what recognition needs from another cascade. See Facebase::assignCompact().
+     * @param cascade       Cascade to copy.
+     * @param halfPrecision Store the eigenvectors in half precision.
+     */
+    void assignCompact(const Cascade &cascade, bool halfPrecision = false) {
+        coarseWidth = cascade.coarseWidth;
+        coarseHeight = cascade.coarseHeight;
+        shortlistSize = cascade.shortlistSize;
+        coarse.assignCompact(cascade.coarse, halfPrecision);
+        width = cascade.width;
+        height = cascade.height;
+        gallery = cascade.gallery;
+        probe = cascade.probe;
+    }
+
+    /**
+     * Get the memory used by the coarse model.
+     * @return Returns the number of bytes.
+     */
+    size_t modelBytes() const {
+        return coarse.modelBytes();
+    }
+
+    size_t coarseWidth = 32, coarseHeight = 32; // Resolution used by the coarse model
+    size_t shortlistSize = 20; // Number of images found using the coarse model, which are compared using the full resolution model
+    Timing timing;
+    Eigenfaces coarse;
+
+private:
+    /**
+     * Downsample an image by averaging the pixels covered by each pixel in the coarse image.
+     * @param X   Image represented as a column vector.
+     * @param out Downsampled image.
+     */
+    void downsample(const Ref<const VectorXu8> &X, Ref<VectorXu8> out) const;
+
+    size_t width = 0, height = 0; // Resolution of the full resolution images
+    uint64_t gallery = 0; // Gallery hash of the full resolution images, see Facebase::galleryHash()
+    VectorXu8 probe; // Downsampled input image
+    std::vector<int32_t> shortlist;
+    std::vector<float> shortlistDist;
+};
+
+#endif
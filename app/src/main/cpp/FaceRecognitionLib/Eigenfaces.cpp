@@ -24,12 +24,22 @@
 using namespace std;
 using namespace Eigen;
 
-void Eigenfaces::train(const MatrixXi &images) {
+bool Eigenfaces::train(const Ref<const MatrixXu8> &images, const Progress &progress /*= Progress()*/) {
+    const bool warm = warmStart && V.rows() == images.rows();
+    if (warm)
+        PCA::U.swap(V); // The previous Eigenfaces are used as the starting point of the PCA
+    const int32_t K = PCA::compute(images, -1, progress);
+    if (K == -1) {
+        if (warm)
+            V.swap(PCA::U); // The PCA was not modified, so the previous Eigenfaces are restored
+        return false; // The memory budget is too small
+    }
     this->n_pixels = images.rows();
 
-    // Copy values from PCA
-    this->numComponents = PCA::compute(images);
-    this->V = PCA::U; // This contains all Eigenfaces
+    // Move the Eigenvectors from PCA, as they would otherwise be stored twice
+    this->numComponents = K;
+    this->V.swap(PCA::U); // This contains all Eigenfaces
+    PCA::U.resize(0, 0);
 
 #ifndef NDEBUG
     cout << "Calculate weights for all images" << endl;
@@ -38,4 +48,107 @@ void Eigenfaces::train(const MatrixXi &images) {
 #ifndef NDEBUG
     cout << "W_all: " << W_all.rows() << " x " << W_all.cols() << endl;
 #endif
+    allocateWorkspace();
+    updateIndex();
+    updateFaceError(images);
+    gallery = hashGallery(images);
+    return true;
+}
+
+bool Eigenfaces::train(const Ref<const MatrixXu8> &images, const PCA &pca) {
+    const int32_t K = pca.energyComponents();
+    if (K == -1)
+        return false;
+    PCA::assign(pca, K);
+
+    this->n_pixels = images.rows();
+    this->numComponents = K;
+    this->V.swap(PCA::U);
+    PCA::U.resize(0, 0);
+
+    this->W_all = project(images); // Calculate weights
+#ifndef NDEBUG
+    cout << "W_all: " << W_all.rows() << " x " << W_all.cols() << endl;
+#endif
+    allocateWorkspace();
+    updateIndex();
+    updateFaceError(images);
+    gallery = hashGallery(images);
+    return true;
+}
+
+void Eigenfaces::train(const Ref<const MatrixXu8> &images, const PCA &pca, const MatrixXf &W) {
+    const int32_t K = W.rows();
+    if (&pca != this) {
+        PCA::assign(pca, K);
+        this->V.swap(PCA::U);
+        PCA::U.resize(0, 0);
+    } else
+        this->V = PCA::U; // The PCA of this model is still being computed, so the Eigenvectors are copied
+
+    this->n_pixels = images.rows();
+    this->numComponents = K;
+    this->W_all = W; // The weights are already known, so the images do not have to be projected
+    allocateWorkspace();
+    clearStage(); // The index and the face error are only calculated for the final model
+    gallery = hashGallery(images);
+}
+
+bool Eigenfaces::update(const Ref<const VectorXu8> &image) {
+    // Based on the incremental PCA with mean update described in "Incremental Learning for Robust Visual Tracking" by D. Ross et al.
+    const size_t n_images = W_all.cols();
+    const int32_t K = numComponents;
+    if (S.size() != K || V.cols() != K || n_images == 0)
+        return false; // The model does not contain the singular values or has been compacted, so it needs to be retrained
+
+    const float scale = sqrt((float) n_images / (n_images + 1));
+    const VectorXf b = (image.cast<float>() - mu)*scale; // Scatter added by the new image, including the shift of the mean
+    const VectorXf a = V.transpose()*b; // Coordinates inside the current subspace
+    VectorXf r = b - V*a; // Residual orthogonal to the subspace
+    const float r_norm = r.norm();
+    if (r_norm > 1e-6f*b.norm())
+        r /= r_norm;
+    else
+        r.setZero(); // The image is already contained in the subspace
+
+    // The new scatter in the basis [V r] is R*R^T, so the SVD of this small matrix gives the rotation of the basis
+    MatrixXf R = MatrixXf::Zero(K + 1, K + 1);
+    R.topLeftCorner(K, K) = S.asDiagonal();
+    R.topRightCorner(K, 1) = a;
+    R(K, K) = r_norm;
+    JacobiSVD<MatrixXf> svd(R, ComputeFullU);
+    const VectorXf S_new = svd.singularValues();
+    const MatrixXf Ur = svd.matrixU().leftCols(K);
+
+    const float error = truncatedEnergy + S_new(K)*S_new(K); // Energy in the discarded direction
+    if (error > maxUpdateError*(energy + b.squaredNorm())) {
+#ifndef NDEBUG
+        cout << "Incremental update error too large: " << error << endl;
+#endif
+        return false;
+    }
+    truncatedEnergy = error;
+    energy += b.squaredNorm();
+    S = S_new.head(K);
+
+    // Coordinates of b in the new basis. As b = [V r]*[a; r_norm], this only requires the small rotation
+    VectorXf ab(K + 1);
+    ab << a, r_norm;
+    const VectorXf W_b = Ur.transpose()*ab;
+
+    V = V*Ur.topRows(K) + r*Ur.row(K); // Rotate the Eigenfaces
+    mu += (image.cast<float>() - mu)/(n_images + 1);
+
+    // Express the old weights in the new basis and shift them by the change of the mean, which is -b/(scale*(n_images + 1))
+    W_all = (Ur.topRows(K).transpose()*W_all).colwise() - W_b/(scale*(n_images + 1));
+    W_all.conservativeResize(NoChange, n_images + 1);
+    W_all.col(n_images) = W_b*scale; // Weight of the new image, which equals W_b/scale*n_images/(n_images + 1)
+    gallery = hashGallery(gallery, image, 0);
+
+#ifndef NDEBUG
+    cout << "W_all: " << W_all.rows() << " x " << W_all.cols() << ", truncated energy: " << truncatedEnergy/energy << endl;
+#endif
+    allocateWorkspace();
+    updateIndex();
+    return true;
 }
@@ -29,9 +29,39 @@ class Eigenfaces : public Facebase {
 public:
     /**
      * Train Eigenfaces.
+     * @param  images   Each images represented as a column vector.
+     * @param  progress If set, then the components found before the PCA is done are reported. See PCA::compute().
+     * @return          Returns false if the memory budget of the arena is too small. The model is not modified in that case.
+     */
+    bool train(const Ref<const MatrixXu8> &images, const Progress &progress = Progress());
+
+    /**
+     * Train Eigenfaces using a PCA that has already been computed on the same images, for instance by Fisherfaces.
+     * The principal components are truncated using the cumulative energy threshold, so no decomposition is done.
+     * @param  images Each images represented as a column vector.
+     * @param  pca    PCA computed on the images.
+     * @return        Returns false if the PCA does not contain enough components. The model is not modified in that case.
+     */
+    bool train(const Ref<const MatrixXu8> &images, const PCA &pca);
+
+    /**
+     * Train Eigenfaces using the components reported while a PCA is computed, so the model can be used before training is done.
+     * The PCA may be the PCA of this model. The HNSW index and the face error are not calculated, so the model compares with all images.
      * @param images Each images represented as a column vector.
+     * @param pca    PCA containing the components found so far.
+     * @param W      Weights of the images on the components.
      */
-    void train(const MatrixXi &images);
+    void train(const Ref<const MatrixXu8> &images, const PCA &pca, const MatrixXf &W);
+
+    /**
+     * Add a single image to the trained model using an incremental PCA update.
+     * The Eigenfaces, mean and weights are rotated using a rank-one update instead of recomputing the PCA.
+     * @param  image Image represented as a column vector.
+     * @return       Returns false if the accumulated error would exceed maxUpdateError. The model is not modified in that case and should be retrained.
+     */
+    bool update(const Ref<const VectorXu8> &image);
+
+    float maxUpdateError = .01f; // Maximum fraction of the energy incremental updates are allowed to discard before a full retrain is required
 };
 
 #endif
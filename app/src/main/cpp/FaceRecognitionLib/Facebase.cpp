@@ -15,24 +15,649 @@
  e-mail   :  lauszus@gmail.com
 */
 
+#include <algorithm>
+#include <cmath>
+#include <cstdio>
+#include <iostream>
+#include <numeric>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
 #include <Eigen/Dense> // http://eigen.tuxfamily.org
 
 #include "Facebase.h"
+#include "Tools.h"
 
+using namespace std;
 using namespace Eigen;
 
-MatrixXf Facebase::project(const MatrixXi &X) {
-    return V.transpose()*(X.cast<float>().colwise() - mu); // Project X onto subspace
+// The model file starts with this header followed by mu, S, V and W_all stored as column-major floats in native byte order
+struct ModelHeader {
+    uint32_t magic;
+    uint32_t version; // Increment this whenever the layout changes
+    uint64_t hash; // Hash of the data the model was trained on
+    uint64_t n_pixels;
+    int32_t numComponents;
+    uint32_t n_columns; // Number of columns in V
+    uint32_t n_images; // Number of columns in W_all
+    uint32_t n_singular; // Number of singular values
+    float energy;
+    float truncatedEnergy;
+    float faceError;
+    uint32_t reserved[3]; // Keep the header size a multiple of 16 bytes
+}; // 64 bytes, so the data following the header stays 16 byte aligned
+
+static const uint32_t modelMagic = 0x4D4C5246; // "FRLM"
+static const uint32_t modelVersion = 3;
+
+// Calculate V^T*x - offset. Eigen does not parallelize matrix-vector products, so the components are split between the threads instead.
+// The Eigenvectors are converted as part of the dot product, so Eigenvectors stored in half precision are never widened in memory
+template<typename Derived, typename Vector>
+static void projectColumns(const MatrixBase<Derived> &V, const Vector &x, const VectorXf &offset, Ref<VectorXf> W) {
+    #pragma omp parallel for num_threads(nbThreads()) schedule(static)
+    for (Index i = 0; i < V.cols(); i++)
+        W(i) = V.col(i).template cast<float>().dot(x) - offset(i);
+}
+
+MatrixXf Facebase::project(const Ref<const MatrixXu8> &X) {
+    MatrixXf W(numColumns(), X.cols());
+    if (isHalfPrecision()) { // Vmu is calculated before V is converted, so it is always valid in this case
+        for (Index j = 0; j < X.cols(); j++)
+            projectColumns(V_half, X.col(j).cast<float>(), Vmu, W.col(j));
+        return W;
+    }
+    if (X.cols() > 1) {
+        // Project X onto subspace. The images are converted and centered a block at a time, so all the centered images are never stored
+        static const Index blockSize = 256;
+        Arena temporary;
+        Arena &workspace = arena != NULL ? *arena : temporary;
+        const Index b = (Index) min<size_t>(min<Index>(blockSize, X.cols()), workspace.available() / V.rows()); // Use the largest block that fits in the memory budget
+        if (b > 0 && workspace.reserve((size_t) V.rows()*b)) {
+            Map<MatrixXf> block = workspace.allocate(V.rows(), b);
+            for (Index j = 0; j < X.cols(); j += b) {
+                const Index n = min(b, X.cols() - j);
+                block.leftCols(n) = X.middleCols(j, n).cast<float>();
+                block.leftCols(n).colwise() -= mu;
+                W.middleCols(j, n).noalias() = V.transpose()*block.leftCols(n); // The matrix product is parallelized by Eigen
+            }
+            return W;
+        }
+
+        // Not even a single image fits in the memory budget, so the images are projected one at a time without any temporaries
+        const VectorXf offset = V.transpose()*mu; // Vmu might not be calculated yet
+        for (Index j = 0; j < X.cols(); j++)
+            projectColumns(V, X.col(j).cast<float>(), offset, W.col(j));
+        return W;
+    }
+
+    // Eigen does not parallelize matrix-vector products, so split the components between the threads instead
+    #pragma omp parallel for num_threads(nbThreads()) schedule(static)
+    for (Index i = 0; i < V.cols(); i++)
+        W(i) = V.col(i).dot(X.col(0).cast<float>() - mu); // The conversion is done as part of the dot product
+    return W;
 }
 
+// The distances are calculated using |W_i - W|^2 = |W_i|^2 + |W|^2 - 2*W_i^T*W, so only a matrix product is needed besides the cached norms
 VectorXf Facebase::euclideanDist(const VectorXf &W) {
-    return ((W_all.colwise() - W)/n_pixels).colwise().norm()/sqrt(numComponents); // Measure euclidean distance between weights
+    assert(W_norm2.size() == W_all.cols()); // The squared norms are calculated by allocateWorkspace()
+    const float scale = 1.0f/(n_pixels*sqrt(numComponents)); // Normalize the distance
+    VectorXf dist = W_all.transpose()*W;
+    dist = ((W_norm2.array() + W.squaredNorm() - 2*dist.array()).max(0.0f).sqrt()*scale).matrix(); // Measure euclidean distance between weights
+    return dist;
+}
+
+MatrixXf Facebase::euclideanDistBatch(const MatrixXf &W) {
+    assert(W_norm2.size() == W_all.cols());
+    const float scale = 1.0f/(n_pixels*sqrt(numComponents));
+    const RowVectorXf W2 = W.colwise().squaredNorm();
+    MatrixXf dist = W_all.transpose()*W; // Calculate all the dot products at once
+    dist = ((((-2*dist).colwise() + W_norm2).rowwise() + W2).array().max(0.0f).sqrt()*scale).matrix();
+    return dist;
 }
 
 VectorXf Facebase::reconstructFace(const VectorXf &W) {
+    if (isHalfPrecision()) {
+        VectorXf face = VectorXf::Zero(n_pixels);
+        for (Index i = 0; i < V_half.cols(); i++)
+            face += V_half.col(i).cast<float>()*W(i); // Widen one Eigenvector at a time
+        return face;
+    }
     return V*W;
 }
 
-float Facebase::euclideanDistFace(const VectorXi &X, const VectorXf &face) {
+float Facebase::euclideanDistFace(const Ref<const VectorXu8> &X, const VectorXf &face) {
     return ((((X.cast<float>() - mu) - face)/n_pixels).colwise().norm()/sqrt(numComponents)).value(); // Measure euclidean distance between weights
 }
+
+bool Facebase::projectProbe(const Ref<const VectorXu8> &X, float faceThreshold) {
+    assert(Vmu.size() == numColumns() && workspace.dist.size() == W_all.cols()); // Make sure that the workspace has been allocated
+
+    // V^T*(X - mu) = V^T*X - V^T*mu. The conversion is done as part of the dot product, so no temporary is needed
+    if (isHalfPrecision())
+        projectColumns(V_half, X.cast<float>(), Vmu, workspace.W);
+    else
+        projectColumns(V, X.cast<float>(), Vmu, workspace.W);
+
+    // The squared distance to the face subspace is |x - mu|^2 - 2*W^T*W + W^T*V^T*V*W, as the face is V*W and W = V^T*(x - mu)
+    workspace.GW.noalias() = G*workspace.W;
+    const float dist2 = (X.cast<float>() - mu).squaredNorm() - 2*workspace.W.squaredNorm() + workspace.W.dot(workspace.GW);
+    workspace.faceDist = sqrt(max(dist2, 0.0f))/n_pixels/sqrt(numComponents); // Normalized the same way as euclideanDistFace
+
+    workspace.isFace = workspace.faceDist <= faceThreshold;
+    return workspace.isFace;
+}
+
+const Facebase::Workspace &Facebase::recognize(const Ref<const VectorXu8> &X, float faceThreshold /*= infinity*/) {
+    if (!projectProbe(X, faceThreshold))
+        return workspace; // The image is not a face, so there is no reason to compare it with the images
+
+    // Same as euclideanDist, but the result is stored in the workspace
+    const float scale = 1.0f/(n_pixels*sqrt(numComponents));
+    workspace.dist.noalias() = W_all.transpose()*workspace.W;
+    workspace.dist = ((W_norm2.array() + workspace.W.squaredNorm() - 2*workspace.dist.array()).max(0.0f).sqrt()*scale).matrix();
+    return workspace;
+}
+
+size_t Facebase::nearest(const Ref<const VectorXu8> &X, size_t k, int32_t *indices, float *dist, float &faceDist,
+                         float faceThreshold /*= infinity*/, size_t ef /*= 0*/) {
+    const bool useIndex = ef > 0 && index.size() == (size_t) W_all.cols();
+    const bool useQuantized = !useIndex && quantized && W_q.cols() == W_all.cols();
+    const bool usePartial = !useIndex && !useQuantized && earlyAbandon;
+    if (!useIndex && !useQuantized && !usePartial) { // Compare with all images
+        recognize(X, faceThreshold);
+        faceDist = workspace.faceDist;
+        if (!workspace.isFace)
+            return 0;
+        const size_t n = smallestIndexes(workspace.dist, k, indices);
+        for (size_t i = 0; i < n; i++)
+            dist[i] = workspace.dist(indices[i]);
+        return n;
+    }
+
+    const bool isFace = projectProbe(X, faceThreshold);
+    faceDist = workspace.faceDist;
+    if (!isFace)
+        return 0;
+    if (useQuantized)
+        return nearestQuantized(k, indices, dist);
+    if (usePartial)
+        return nearestPartial(k, indices, dist);
+
+    const float scale = 1.0f/(n_pixels*sqrt(numComponents));
+    const size_t n = index.search(workspace.W, k, ef, indices, dist);
+    for (size_t i = 0; i < n; i++)
+        dist[i] = sqrt(max(dist[i], 0.0f))*scale; // Normalized the same way as euclideanDist
+    return n;
+}
+
+// Dot product of an 8-bit and a 16-bit vector accumulated in 32 bits.
+// The loop is kept simple, so the compiler vectorizes it using multiply-add instructions (pmaddwd on x86 and smlal on NEON)
+static inline int32_t dotInt8(const int8_t *a, const int16_t *b, Index n) {
+    int32_t sum = 0;
+    for (Index i = 0; i < n; i++)
+        sum += (int32_t) a[i]*b[i];
+    return sum;
+}
+
+size_t Facebase::nearestQuantized(size_t k, int32_t *indices, float *dist) {
+    const Index K = W_q.rows();
+
+    // The image is quantized after being multiplied by the scale of each component, so W^T*W_q is an integer dot product.
+    // 13 bits are used, so the sum does not overflow for less than 4096 components
+    float maxValue = 0;
+    for (Index i = 0; i < K; i++)
+        maxValue = max(maxValue, abs(W_scale(i)*workspace.W(i)));
+    const float step = maxValue > 0 ? maxValue/4095.0f : 1.0f;
+    for (Index i = 0; i < K; i++)
+        workspace.Wq(i) = (int16_t) lround(W_scale(i)*workspace.W(i)/step);
+
+    // Approximate squared distance |g|^2 + |w|^2 - 2*g^T*w, where only the dot product is quantized
+    const float W_norm2_probe = workspace.W.squaredNorm();
+    #pragma omp parallel for num_threads(nbThreads()) schedule(static)
+    for (Index i = 0; i < W_q.cols(); i++)
+        workspace.dist(i) = W_norm2(i) + W_norm2_probe - 2*step*dotInt8(W_q.col(i).data(), workspace.Wq.data(), K);
+
+    // Re-rank the nearest candidates using the exact weights
+    const size_t n_candidates = min(max(k, rerankCandidates), (size_t) W_all.cols());
+    if ((size_t) workspace.candidates.size() < n_candidates) { // Only allocates if more candidates are requested than last time
+        workspace.candidates.resize(n_candidates);
+        workspace.candidateDist.resize(n_candidates);
+    }
+    smallestIndexes(workspace.dist, n_candidates, workspace.candidates.data());
+    return rerank(n_candidates, k, indices, dist);
+}
+
+size_t Facebase::nearestAmong(const Ref<const VectorXu8> &X, const int32_t *candidates, size_t n_candidates, size_t k, int32_t *indices, float *dist,
+                              float &faceDist, float faceThreshold /*= infinity*/) {
+    const bool isFace = projectProbe(X, faceThreshold);
+    faceDist = workspace.faceDist;
+    if (!isFace)
+        return 0;
+
+    if ((size_t) workspace.candidates.size() < n_candidates) { // Only allocates if more candidates are given than last time
+        workspace.candidates.resize(n_candidates);
+        workspace.candidateDist.resize(n_candidates);
+    }
+    copy(candidates, candidates + n_candidates, workspace.candidates.data());
+    return rerank(n_candidates, k, indices, dist);
+}
+
+size_t Facebase::rerank(size_t n_candidates, size_t k, int32_t *indices, float *dist) {
+    const float scale = 1.0f/(n_pixels*sqrt(numComponents));
+    for (size_t i = 0; i < n_candidates; i++)
+        workspace.candidateDist(i) = (W_all.col(workspace.candidates(i)) - workspace.W).norm()*scale;
+
+    const size_t n = smallestIndexes(workspace.candidateDist.head(n_candidates), k, indices);
+    for (size_t i = 0; i < n; i++) {
+        dist[i] = workspace.candidateDist(indices[i]);
+        indices[i] = workspace.candidates(indices[i]);
+    }
+    return n;
+}
+
+size_t Facebase::nearestPartial(size_t k, int32_t *indices, float *dist) {
+    const Index K = W_all.rows(), blockSize = 8;
+    k = min(k, (size_t) W_all.cols());
+    if (k == 0)
+        return 0;
+    if ((size_t) workspace.candidates.size() < k) { // Only allocates if more images are requested than last time
+        workspace.candidates.resize(k);
+        workspace.candidateDist.resize(k);
+    }
+
+    const float scale = 1.0f/(n_pixels*sqrt(numComponents));
+    const float maxDist2 = abandonDist/scale*abandonDist/scale; // Squared distance before scaling
+    int32_t *heap = workspace.candidates.data(); // The largest of the k nearest distances found so far is kept at the front
+    auto compare = [this](int32_t i1, int32_t i2) { return workspace.dist(i1) < workspace.dist(i2); };
+    size_t n = 0;
+    uint64_t components = 0;
+
+    // This is done serially, as the bound tightens as the images are compared
+    for (Index i = 0; i < W_all.cols(); i++) {
+        const float bound = n == k ? workspace.dist(heap[0]) : maxDist2;
+        float sum = 0;
+        Index j = 0;
+        while (j < K && sum < bound) {
+            const Index size = min(blockSize, K - j);
+            sum += (W_all.col(i).segment(j, size) - workspace.W.segment(j, size)).squaredNorm();
+            j += size;
+        }
+        components += j;
+        if (sum >= bound)
+            continue; // Abandoned
+
+        workspace.dist(i) = sum;
+        if (n < k) {
+            heap[n++] = i;
+            push_heap(heap, heap + n, compare);
+        } else {
+            pop_heap(heap, heap + k, compare);
+            heap[k - 1] = i;
+            push_heap(heap, heap + k, compare);
+        }
+    }
+    sort_heap(heap, heap + n, compare);
+
+    for (size_t i = 0; i < n; i++) {
+        indices[i] = heap[i];
+        dist[i] = sqrt(workspace.dist(heap[i]))*scale; // Normalized the same way as euclideanDist
+    }
+
+    partialStats.searches++;
+    partialStats.images += W_all.cols();
+    partialStats.components += components;
+    return n;
+}
+
+int32_t Facebase::nearestClass(const Ref<const VectorXu8> &X, float &dist, int32_t &index, float &faceDist,
+                               float faceThreshold /*= infinity*/, bool recheck /*= false*/) {
+    dist = numeric_limits<float>::infinity();
+    index = -1;
+    const bool isFace = projectProbe(X, faceThreshold);
+    faceDist = workspace.faceDist;
+    if (!isFace || R.cols() == 0)
+        return 0;
+
+    // Same as euclideanDist, but compared with the centroids and prototypes
+    const float scale = 1.0f/(n_pixels*sqrt(numComponents));
+    workspace.classDist.noalias() = R.transpose()*workspace.W;
+    workspace.classDist = ((R_norm2.array() + workspace.W.squaredNorm() - 2*workspace.classDist.array()).max(0.0f).sqrt()*scale).matrix();
+    Index nearest;
+    dist = workspace.classDist.minCoeff(&nearest);
+    const int32_t label = R_labels(nearest);
+
+    if (recheck) { // Compare with the images of the class
+        dist = numeric_limits<float>::infinity();
+        for (Index i = classStart(label - 1); i < classStart(label); i++) {
+            const float d = (W_all.col(classMembers(i)) - workspace.W).norm()*scale;
+            if (d < dist) {
+                dist = d;
+                index = classMembers(i);
+            }
+        }
+    }
+    return label;
+}
+
+void Facebase::setClassMatching(bool classMatching, size_t prototypesPerClass /*= 0*/) {
+    this->classMatching = classMatching;
+    this->prototypesPerClass = prototypesPerClass;
+    updateClassRepresentatives();
+}
+
+void Facebase::updateClassRepresentatives() {
+    if (!classMatching || classes.size() != W_all.cols() || W_all.cols() == 0) {
+        R.resize(0, 0);
+        R_norm2.resize(0);
+        R_labels.resize(0);
+        classStart.resize(0);
+        classMembers.resize(0);
+        workspace.classDist.resize(0);
+        return;
+    }
+
+    // Group the images by class using a counting sort. Old classes might have no images left, as images are removed from the start
+    const int32_t n_classes = classes.maxCoeff();
+    classStart = VectorXi::Zero(n_classes + 1);
+    for (Index i = 0; i < classes.size(); i++)
+        classStart(classes(i))++;
+    for (int32_t c = 1; c <= n_classes; c++)
+        classStart(c) += classStart(c - 1);
+    VectorXi offset = classStart.head(n_classes);
+    classMembers.resize(classes.size());
+    for (Index i = 0; i < classes.size(); i++)
+        classMembers(offset(classes(i) - 1)++) = i;
+
+    R.resize(W_all.rows(), n_classes*(1 + prototypesPerClass));
+    R_labels.resize(R.cols());
+    Index r = 0;
+    VectorXf minDist;
+    for (int32_t c = 1; c <= n_classes; c++) {
+        const Index start = classStart(c - 1), n = classStart(c) - start;
+        if (n == 0)
+            continue;
+
+        VectorXf centroid = VectorXf::Zero(W_all.rows());
+        for (Index i = 0; i < n; i++)
+            centroid += W_all.col(classMembers(start + i));
+        centroid /= n;
+        R.col(r) = centroid;
+        R_labels(r++) = c;
+
+        // The prototypes are found using farthest point sampling starting at the image closest to the centroid, so they cover the spread of the class
+        minDist.resize(n);
+        for (Index i = 0; i < n; i++)
+            minDist(i) = (W_all.col(classMembers(start + i)) - centroid).squaredNorm();
+        Index prototype;
+        minDist.minCoeff(&prototype);
+        minDist.setConstant(numeric_limits<float>::infinity());
+        for (size_t p = 0; p < min(prototypesPerClass, (size_t) n); p++) {
+            R.col(r) = W_all.col(classMembers(start + prototype));
+            R_labels(r++) = c;
+            for (Index i = 0; i < n; i++)
+                minDist(i) = min(minDist(i), (W_all.col(classMembers(start + i)) - R.col(r - 1)).squaredNorm());
+            minDist.maxCoeff(&prototype);
+        }
+    }
+    R.conservativeResize(NoChange, r);
+    R_labels.conservativeResize(r);
+    R_norm2 = R.colwise().squaredNorm().transpose();
+    workspace.classDist.resize(r);
+}
+
+void Facebase::setQuantized(bool quantized) {
+    this->quantized = quantized;
+    quantizeWeights();
+}
+
+void Facebase::quantizeWeights() {
+    if (!quantized) {
+        W_q.resize(0, 0);
+        W_scale.resize(0);
+        workspace.Wq.resize(0);
+        return;
+    }
+
+    // Each component is scaled separately, as the range of the weights decreases with the variance of the component
+    W_scale = W_all.rowwise().lpNorm<Infinity>()/127.0f;
+    W_scale = (W_scale.array() > 0).select(W_scale.array(), 1.0f).matrix(); // Avoid dividing by zero
+    W_q = (W_all.array().colwise()/W_scale.array()).round().cast<int8_t>();
+    workspace.Wq.resize(W_all.rows());
+    workspace.candidates.resize(rerankCandidates);
+    workspace.candidateDist.resize(rerankCandidates);
+}
+
+void Facebase::updateIndex() {
+    if ((size_t) W_all.cols() >= minIndexedImages)
+        index.build(W_all);
+    else
+        index.clear();
+}
+
+void Facebase::clearStage() {
+    index.clear();
+    faceError = 0; // drift() is 0 until the final model has been trained
+    enrollErrors.clear();
+}
+
+void Facebase::allocateWorkspace() {
+    if (V.size() > 0) { // A model stored in half precision keeps V^T*mu and V^T*V calculated before V was converted
+        V_half.resize(0, 0); // The model has changed, so the copy in half precision is no longer valid
+        Vmu.noalias() = V.transpose()*mu;
+        G.setZero(V.cols(), V.cols());
+        G.selfadjointView<Lower>().rankUpdate(V.transpose()); // V^T*V is symmetric, so only the lower triangular part is calculated
+        G.triangularView<StrictlyUpper>() = G.transpose();
+    }
+    W_norm2 = W_all.colwise().squaredNorm().transpose();
+    workspace.W.resize(numColumns());
+    workspace.GW.resize(numColumns());
+    workspace.dist.resize(W_all.cols());
+    workspace.faceDist = 0;
+    workspace.isFace = false;
+    quantizeWeights();
+    updateClassRepresentatives();
+}
+
+bool Facebase::enroll(const Ref<const VectorXu8> &X, int32_t label, size_t n_removed /*= 0*/) {
+    const bool indexed = index.size() > 0 && index.size() == (size_t) W_all.cols();
+    const VectorXf W = project(X); // Project onto subspace
+    enrollErrors.push_back(euclideanDistFace(X, reconstructFace(W)));
+    if (enrollErrors.size() > driftWindow)
+        enrollErrors.erase(enrollErrors.begin());
+
+    const size_t n_images = W_all.cols() - n_removed + 1;
+    if ((size_t) classes.size() == (size_t) W_all.cols()) {
+        VectorXi classes_new(n_images);
+        classes_new << classes.tail(n_images - 1), label;
+        classes.swap(classes_new);
+    }
+    MatrixXf W_all_new(W_all.rows(), n_images);
+    W_all_new << W_all.rightCols(n_images - 1), W;
+    W_all.swap(W_all_new);
+    S.resize(0); // The singular values no longer describe all the images, so the model can not be updated incrementally
+    gallery = hashGallery(gallery, X, n_removed);
+    allocateWorkspace();
+    if (indexed) { // Update the index instead of rebuilding it
+        index.removeFront(n_removed);
+        index.add(W);
+    } else
+        updateIndex();
+
+#ifndef NDEBUG
+    cout << "Enrolled image, drift: " << drift() << endl;
+#endif
+    return drift() > maxDrift;
+}
+
+float Facebase::drift() const {
+    if (enrollErrors.empty() || faceError <= 0)
+        return 0;
+    return accumulate(enrollErrors.begin(), enrollErrors.end(), 0.0f)/enrollErrors.size()/faceError;
+}
+
+void Facebase::updateFaceError(const Ref<const MatrixXu8> &images) {
+    faceError = 0;
+    enrollErrors.clear();
+    if (numComponents <= 0 || W_all.cols() == 0)
+        return; // The model is not valid
+
+    // The squared distance is |x - mu|^2 - 2*W^T*W + W^T*V^T*V*W, as W = V^T*(x - mu). This avoids reconstructing all the faces
+    assert(G.cols() == numColumns()); // G is calculated by allocateWorkspace()
+    float sum = 0;
+    #pragma omp parallel for num_threads(nbThreads()) reduction(+:sum)
+    for (Index i = 0; i < W_all.cols(); i++) {
+        const float dist2 = (images.col(i).cast<float>() - mu).squaredNorm() - 2*W_all.col(i).squaredNorm() + W_all.col(i).dot(G*W_all.col(i));
+        sum += sqrt(max(dist2, 0.0f))/n_pixels/sqrt(numComponents); // Normalized the same way as euclideanDistFace
+    }
+    faceError = sum/W_all.cols();
+#ifndef NDEBUG
+    cout << "Face error: " << faceError << endl;
+#endif
+}
+
+bool Facebase::save(const char *filename, uint64_t hash) {
+    if (isHalfPrecision())
+        return false;
+    ModelHeader header = { modelMagic, modelVersion, hash, n_pixels, numComponents, (uint32_t) V.cols(), (uint32_t) W_all.cols(), (uint32_t) S.size(), energy, truncatedEnergy, faceError, { 0 } };
+
+    FILE *file = fopen(filename, "wb");
+    if (file == NULL)
+        return false;
+
+    bool success = fwrite(&header, sizeof(header), 1, file) == 1;
+    success = success && fwrite(mu.data(), sizeof(float), mu.size(), file) == (size_t) mu.size();
+    success = success && fwrite(S.data(), sizeof(float), S.size(), file) == (size_t) S.size();
+    success = success && fwrite(V.data(), sizeof(float), V.size(), file) == (size_t) V.size();
+    success = success && fwrite(W_all.data(), sizeof(float), W_all.size(), file) == (size_t) W_all.size();
+    success = fclose(file) == 0 && success;
+    if (!success)
+        remove(filename); // Never leave a partially written model behind
+    return success;
+}
+
+bool Facebase::load(const char *filename, uint64_t hash) {
+    int fd = open(filename, O_RDONLY);
+    if (fd < 0)
+        return false;
+
+    struct stat st;
+    if (fstat(fd, &st) != 0 || (size_t) st.st_size < sizeof(ModelHeader)) {
+        close(fd);
+        return false;
+    }
+    const size_t size = st.st_size;
+
+    void *data = mmap(NULL, size, PROT_READ, MAP_PRIVATE, fd, 0);
+    close(fd); // The mapping stays valid after the file is closed
+    if (data == MAP_FAILED)
+        return false;
+    madvise(data, size, MADV_SEQUENTIAL); // The file is read from start to end
+
+    // The products are calculated in 64 bits, as size_t only has 32 bits on some devices
+    const ModelHeader *header = (const ModelHeader *) data;
+    const bool valid = header->magic == modelMagic && header->version == modelVersion && header->hash == hash &&
+                       header->numComponents >= 0 && (uint32_t) header->numComponents <= header->n_columns &&
+                       size == sizeof(ModelHeader) + sizeof(float) * ((uint64_t) header->n_pixels + header->n_singular +
+                                                                      (uint64_t) header->n_pixels*header->n_columns + (uint64_t) header->n_columns*header->n_images);
+    if (valid) {
+        const float *p = (const float *) (header + 1);
+        this->n_pixels = header->n_pixels;
+        this->numComponents = header->numComponents;
+        this->energy = header->energy;
+        this->truncatedEnergy = header->truncatedEnergy;
+        this->faceError = header->faceError;
+        enrollErrors.clear();
+        mu = Map<const VectorXf>(p, n_pixels);
+        p += n_pixels;
+        S = Map<const VectorXf>(p, header->n_singular);
+        p += S.size();
+        V = Map<const MatrixXf>(p, n_pixels, header->n_columns);
+        p += V.size();
+        W_all = Map<const MatrixXf>(p, header->n_columns, header->n_images);
+        gallery = hash;
+        allocateWorkspace();
+        updateIndex();
+    }
+
+    munmap(data, size);
+    return valid;
+}
+
+uint64_t Facebase::hashGallery(const Ref<const MatrixXu8> &images) {
+    uint64_t hash = fnv1aHash(NULL, 0);
+    for (Index j = 0; j < images.cols(); j++)
+        hash = fnv1aHash(images.col(j).data(), images.rows(), hash); // The columns are contiguous, but there might be padding between them
+    return hash;
+}
+
+uint64_t Facebase::hashGallery(uint64_t hash, const Ref<const VectorXu8> &X, size_t n_removed) {
+    const uint64_t removed = n_removed;
+    hash = fnv1aHash(&removed, sizeof(removed), hash);
+    return fnv1aHash(X.data(), X.size(), hash);
+}
+
+void Facebase::compact(bool halfPrecision /*= false*/) {
+    PCA::U.resize(0, 0); // Only needed to derive V and update the model
+    arena = NULL; // The compact model is never trained, so it must not share the arena with the trained model
+    enrollErrors.clear();
+    enrollErrors.shrink_to_fit();
+    if (halfPrecision && V.size() > 0) {
+        V_half = V.cast<half>();
+        V.resize(0, 0);
+    }
+}
+
+void Facebase::assignCompact(const Facebase &model, bool halfPrecision /*= false*/) {
+    PCA::U.resize(0, 0);
+    mu = model.mu;
+    S = model.S;
+    energy = model.energy;
+    truncatedEnergy = model.truncatedEnergy;
+    arena = NULL;
+
+    if (halfPrecision && model.V.size() > 0) {
+        V_half = model.V.cast<half>();
+        V.resize(0, 0);
+    } else {
+        V = model.V;
+        V_half = model.V_half;
+    }
+    numComponents = model.numComponents;
+    classes = model.classes;
+    maxDrift = model.maxDrift;
+    driftWindow = model.driftWindow;
+    rerankCandidates = model.rerankCandidates;
+    earlyAbandon = model.earlyAbandon;
+    abandonDist = model.abandonDist;
+    minIndexedImages = model.minIndexedImages;
+
+    W_all = model.W_all;
+    n_pixels = model.n_pixels;
+    gallery = model.gallery;
+    index = model.index;
+    faceError = model.faceError;
+    enrollErrors.clear();
+    Vmu = model.Vmu;
+    G = model.G;
+    W_norm2 = model.W_norm2;
+    quantized = model.quantized;
+    W_q = model.W_q;
+    W_scale = model.W_scale;
+    partialStats = PartialDistStats();
+    classMatching = model.classMatching;
+    prototypesPerClass = model.prototypesPerClass;
+    R = model.R;
+    R_norm2 = model.R_norm2;
+    R_labels = model.R_labels;
+    classStart = model.classStart;
+    classMembers = model.classMembers;
+    workspace = model.workspace; // Only the sizes of the buffers matter
+}
+
+size_t Facebase::modelBytes() const {
+    return sizeof(float)*(PCA::U.size() + mu.size() + S.size() + V.size() + W_all.size() + Vmu.size() + G.size() + W_norm2.size() +
+                          W_scale.size() + R.size() + R_norm2.size()) +
+           sizeof(half)*V_half.size() + sizeof(int8_t)*W_q.size();
+}
@@ -18,20 +18,48 @@
 #ifndef __facebase_h__
 #define __facebase_h__
 
+#include <limits>
+#include <vector>
 #include <Eigen/Dense> // http://eigen.tuxfamily.org
 
+#include "HNSW.h"
 #include "PCA.h"
 
 using namespace Eigen;
 
 class Facebase : public PCA {
 public:
+    // Counters for the partial distance search, which show how much of the weights is read
+    struct PartialDistStats {
+        uint64_t searches = 0; // Number of searches
+        uint64_t images = 0; // Number of images compared
+        uint64_t components = 0; // Number of components accumulated before an image was completed or abandoned
+
+        // Average number of components touched per image
+        float averageComponents() const {
+            return images > 0 ? (float) components / images : 0;
+        }
+    };
+
+    // Buffers used by recognize(). They are allocated once when the model changes, so recognizing an image does not allocate any memory
+    struct Workspace {
+        VectorXf W; // Weights of the image
+        VectorXf GW; // V^T*V*W, used to calculate the distance to the face subspace
+        VectorXf dist; // Distance to the weights of all images. Only valid if isFace is true
+        Matrix<int16_t, Dynamic, 1> Wq; // Quantized weights of the image, used when the quantized weights are scanned
+        VectorXi candidates; // Images re-ranked using the exact weights
+        VectorXf candidateDist; // Exact distance to the candidates
+        VectorXf classDist; // Distance to the centroids and prototypes of the classes
+        float faceDist; // Distance to the face subspace
+        bool isFace; // False if the distance to the face subspace exceeded the face threshold, so the distances to the images were not calculated
+    };
+
     /**
-     * Project X onto subspace.
+     * Project X onto subspace. Several images are centered a block at a time using the arena, so the block fits in the memory budget.
      * @param  X Input image.
      * @return   Returns the weight matrix.
      */
-    MatrixXf project(const MatrixXi &X);
+    MatrixXf project(const Ref<const MatrixXu8> &X);
 
     /**
      * Calculate distance between weight and the weights for the current method used.
@@ -40,6 +68,14 @@ public:
      */
     VectorXf euclideanDist(const VectorXf &W);
 
+    /**
+     * Calculate distance between several weights and the weights for the current method used.
+     * All the distances are calculated using a single matrix product.
+     * @param  W Weights calculated by projecting images onto subspace. Each column is a weight.
+     * @return   Return a matrix where column j contains the distances for column j in W.
+     */
+    MatrixXf euclideanDistBatch(const MatrixXf &W);
+
     /**
      * Reconstruct a face from a weight.
      * @param  W Weight calculated by projecting image onto subspace.
@@ -53,14 +89,317 @@ public:
      * @param  face Face vector.
      * @return      Returns the distance to the face subspace.
      */
-    float euclideanDistFace(const VectorXi &X, const VectorXf &face);
+    float euclideanDistFace(const Ref<const VectorXu8> &X, const VectorXf &face);
+
+    /**
+     * Project an image onto the subspace and calculate the distance to the face subspace and the distances to all images.
+     * The distance to the face subspace is calculated from the weights, so the face is never reconstructed.
+     * This does not allocate any memory, as the results are stored in the workspace.
+     * @param  X             Input image.
+     * @param  faceThreshold If the distance to the face subspace exceeds this, then the image is not compared with the images.
+     * @return               Returns the workspace containing the results.
+     */
+    const Workspace &recognize(const Ref<const VectorXu8> &X, float faceThreshold = std::numeric_limits<float>::infinity());
+
+    /**
+     * Find the nearest images. If the HNSW index has been built and ef is larger than zero, the index is searched
+     * instead of calculating the distance to all images. Otherwise if the weights are quantized, the 8-bit weights are
+     * scanned and the nearest candidates are re-ranked using the exact weights. Otherwise if earlyAbandon is set,
+     * the distances are accumulated in blocks of components and an image is abandoned as soon as it can not be among the nearest.
+     * @param  X             Input image.
+     * @param  k             Number of images to find.
+     * @param  indices       Array with room for k indices. The indices are sorted by increasing distance.
+     * @param  dist          Array with room for k distances.
+     * @param  faceDist      Returns the distance to the face subspace.
+     * @param  faceThreshold If the distance to the face subspace exceeds this, then no images are returned.
+     * @param  ef            Number of candidates considered when searching the index. Set to 0 in order to always compare with all images.
+     * @return               Returns the number of images found.
+     */
+    size_t nearest(const Ref<const VectorXu8> &X, size_t k, int32_t *indices, float *dist, float &faceDist,
+                   float faceThreshold = std::numeric_limits<float>::infinity(), size_t ef = 0);
+
+    /**
+     * Find the nearest images among a list of candidates, e.g. a shortlist found using a cheaper model.
+     * @param  X             Input image.
+     * @param  candidates    Indices of the candidate images.
+     * @param  n_candidates  Number of candidates.
+     * @param  k             Number of images to find.
+     * @param  indices       Array with room for k indices. The indices are sorted by increasing distance.
+     * @param  dist          Array with room for k distances.
+     * @param  faceDist      Returns the distance to the face subspace.
+     * @param  faceThreshold If the distance to the face subspace exceeds this, then no images are returned.
+     * @return               Returns the number of images found.
+     */
+    size_t nearestAmong(const Ref<const VectorXu8> &X, const int32_t *candidates, size_t n_candidates, size_t k, int32_t *indices, float *dist,
+                        float &faceDist, float faceThreshold = std::numeric_limits<float>::infinity());
 
-    MatrixXf V; // Eigenvector
+    /**
+     * Find the nearest class by comparing with the centroid and prototypes of each class instead of all images.
+     * This requires the model to be trained with classes and class matching to be enabled using setClassMatching().
+     * @param  X             Input image.
+     * @param  dist          Returns the distance to the nearest centroid or prototype. If recheck is set, this is the distance to the nearest image of the class.
+     * @param  index         Returns the index of the nearest image of the class if recheck is set. Otherwise this is set to -1.
+     * @param  faceDist      Returns the distance to the face subspace.
+     * @param  faceThreshold If the distance to the face subspace exceeds this, then the image is not compared with the classes.
+     * @param  recheck       Compare with the individual images of the nearest class.
+     * @return               Returns the class of the nearest centroid or prototype. This is 0 if the image is not a face or no classes are available.
+     */
+    int32_t nearestClass(const Ref<const VectorXu8> &X, float &dist, int32_t &index, float &faceDist,
+                         float faceThreshold = std::numeric_limits<float>::infinity(), bool recheck = false);
+
+    /**
+     * Calculate the centroid of each class in weight space whenever the model changes, so the classes can be matched using nearestClass().
+     * @param classMatching      Set to true in order to enable class matching.
+     * @param prototypesPerClass Number of images of each class used as prototypes in addition to the centroid.
+     */
+    void setClassMatching(bool classMatching, size_t prototypesPerClass = 0);
+
+    bool isClassMatching() const {
+        return classMatching;
+    }
+
+    /**
+     * Recalculate the centroids and prototypes of the classes. This is done automatically when the model changes,
+     * but must be called if the classes are set directly.
+     */
+    void updateClassRepresentatives();
+
+    /**
+     * Keep an 8-bit copy of the weights, which is scanned by nearest() instead of the weights.
+     * This reads a quarter of the memory per image, but the exact weights are still kept for re-ranking.
+     * @param quantized Set to true in order to quantize the weights.
+     */
+    void setQuantized(bool quantized);
+
+    bool isQuantized() const {
+        return quantized;
+    }
+
+    /**
+     * Release everything that is only needed to train or update the model, so it only holds what recognition needs.
+     * The model can not be updated or saved afterwards, but it can still be retrained.
+     * @param halfPrecision Store V in half precision. The Eigenvectors are widened to single precision inside the projection,
+     *                      which halves the memory used by V at the cost of a slightly less accurate projection.
+     */
+    void compact(bool halfPrecision = false);
+
+    /**
+     * Copy only what recognition needs from another model. This gives the same model as copying it and calling compact(),
+     * but the data only needed for training is never copied. The partial distance counters are reset.
+     * @param model         Model to copy.
+     * @param halfPrecision Store V in half precision. V is converted directly from the other model.
+     */
+    void assignCompact(const Facebase &model, bool halfPrecision = false);
+
+    bool isHalfPrecision() const {
+        return V.size() == 0 && V_half.size() > 0;
+    }
+
+    /**
+     * Check if the model has been trained or loaded.
+     * @return Returns true if the Eigenvectors are available in single or half precision.
+     */
+    bool isTrained() const {
+        return isHalfPrecision() || V.any();
+    }
+
+    /**
+     * Get the number of bytes used by the matrices of the model.
+     * @return Returns the number of bytes.
+     */
+    size_t modelBytes() const;
+
+    /**
+     * Get the counters of the partial distance search.
+     * @return Returns the counters accumulated since they were reset.
+     */
+    const PartialDistStats &partialDistStats() const {
+        return partialStats;
+    }
+
+    void resetPartialDistStats() {
+        partialStats = PartialDistStats();
+    }
+
+    /**
+     * Enroll an image without retraining, by projecting it onto the current subspace and appending the weight.
+     * As the subspace is not updated, the distance to the face subspace of the enrolled images is tracked,
+     * so it can be detected when the subspace no longer describes the images.
+     * @param  X         Image represented as a column vector.
+     * @param  label     Class of the image. This is ignored if the model is trained without classes.
+     * @param  n_removed Number of images to remove from the start of the model.
+     * @return           Returns true if drift() exceeds maxDrift and the model should be retrained.
+     */
+    bool enroll(const Ref<const VectorXu8> &X, int32_t label, size_t n_removed = 0);
+
+    /**
+     * Get the mean distance to the face subspace of the recently enrolled images
+     * relative to the mean distance of the images the model was trained on.
+     * @return Returns the drift. A value of 1 means the enrolled images fit the subspace as well as the training images.
+     */
+    float drift() const;
+
+    /**
+     * Save the trained model to a binary file.
+     * @param  filename Path to the model file.
+     * @param  hash     Hash of the data the model was trained on. This is used to detect a stale model when it is loaded.
+     * @return          Returns true if the model was written successfully. A model stored in half precision can not be saved.
+     */
+    bool save(const char *filename, uint64_t hash);
+
+    /**
+     * Load a model written by save(). The file is memory-mapped, so no parsing is needed.
+     * @param  filename Path to the model file.
+     * @param  hash     Hash of the data the model is expected to be trained on.
+     * @return          Returns true if the model was loaded. If false is returned the model needs to be retrained.
+     */
+    bool load(const char *filename, uint64_t hash);
+
+    /**
+     * Get the number of images in the model.
+     * @return Returns the number of weights.
+     */
+    int numImages() const {
+        return W_all.cols();
+    }
+
+    /**
+     * Get a hash identifying the images in the model. It is calculated from the images when the model is trained and updated
+     * whenever images are added or removed, so models containing the same images have the same hash.
+     * A loaded model uses the hash of the data it was trained on.
+     * @return Returns the hash.
+     */
+    uint64_t galleryHash() const {
+        return gallery;
+    }
+
+    /**
+     * Calculate the gallery hash of images.
+     * @param  images Each images represented as a column vector.
+     * @return        Returns the hash.
+     */
+    static uint64_t hashGallery(const Ref<const MatrixXu8> &images);
+
+    /**
+     * Calculate the gallery hash after an image has been added and the oldest images have been removed.
+     * @param  hash      Gallery hash before the image was added.
+     * @param  X         Image represented as a column vector.
+     * @param  n_removed Number of images removed from the start of the model.
+     * @return           Returns the hash.
+     */
+    static uint64_t hashGallery(uint64_t hash, const Ref<const VectorXu8> &X, size_t n_removed);
+
+    MatrixXf V; // Eigenvector. This is empty if the model is stored in half precision
     int32_t numComponents; // Number of components
+    VectorXi classes; // Class of each image. Only set when the model is trained with classes
+    float maxDrift = 1.5f; // Drift at which enroll() requests a retrain
+    size_t driftWindow = 5; // Number of recently enrolled images used to calculate the drift
+    size_t rerankCandidates = 32; // Number of candidates found using the quantized weights, which are re-ranked using the exact weights
+    bool earlyAbandon = false; // Use the partial distance search in nearest(). The components are ordered by decreasing variance, so most of the distance is in the first components
+    float abandonDist = std::numeric_limits<float>::infinity(); // Images further away than this are abandoned by the partial distance search
+    size_t minIndexedImages = 2000; // The HNSW index is only built when there are at least this many images, as comparing with all images is faster for small galleries
 
 protected:
+    /**
+     * Calculate the distance to the face subspace of the training images, which is used as reference for the drift.
+     * Must be called after training.
+     * @param images Images the model was trained on.
+     */
+    void updateFaceError(const Ref<const MatrixXu8> &images);
+
+    /**
+     * Allocate the workspace and precompute V^T*mu, V^T*V and the squared norm of the weights. Must be called whenever the model has changed.
+     */
+    void allocateWorkspace();
+
+    /**
+     * Rebuild the HNSW index over the weights. Must be called whenever all the weights have changed.
+     */
+    void updateIndex();
+
+    /**
+     * Clear the HNSW index and the face error instead of calculating them. Used by the models published while training,
+     * which compare with all images, as the index and the face error are only calculated for the final model.
+     */
+    void clearStage();
+
     MatrixXf W_all; // Total weights
     size_t n_pixels;
+    uint64_t gallery = 0; // See galleryHash()
+
+private:
+    /**
+     * Project an image onto the subspace and calculate the distance to the face subspace. The results are stored in the workspace.
+     * @param  X             Input image.
+     * @param  faceThreshold Threshold for the distance to the face subspace.
+     * @return               Returns true if the image is a face.
+     */
+    bool projectProbe(const Ref<const VectorXu8> &X, float faceThreshold);
+
+    /**
+     * Find the nearest images by scanning the quantized weights and re-ranking the nearest candidates using the exact weights.
+     * The image must have been projected using projectProbe().
+     * @param  k       Number of images to find.
+     * @param  indices Array with room for k indices. The indices are sorted by increasing distance.
+     * @param  dist    Array with room for k distances.
+     * @return         Returns the number of images found.
+     */
+    size_t nearestQuantized(size_t k, int32_t *indices, float *dist);
+
+    /**
+     * Calculate the exact distance to the candidates stored in the workspace and find the nearest of them.
+     * The image must have been projected using projectProbe().
+     * @param  n_candidates Number of candidates in the workspace.
+     * @param  k            Number of images to find.
+     * @param  indices      Array with room for k indices. The indices are sorted by increasing distance.
+     * @param  dist         Array with room for k distances.
+     * @return              Returns the number of images found.
+     */
+    size_t rerank(size_t n_candidates, size_t k, int32_t *indices, float *dist);
+
+    /**
+     * Find the nearest images by accumulating the squared distance in blocks of components.
+     * An image is abandoned as soon as the partial distance exceeds the k-th nearest distance found so far or abandonDist.
+     * The image must have been projected using projectProbe().
+     * @param  k       Number of images to find.
+     * @param  indices Array with room for k indices. The indices are sorted by increasing distance.
+     * @param  dist    Array with room for k distances.
+     * @return         Returns the number of images found.
+     */
+    size_t nearestPartial(size_t k, int32_t *indices, float *dist);
+
+    /**
+     * Quantize each component of the weights to 8 bits. Clears the quantized weights if quantization is disabled.
+     */
+    void quantizeWeights();
+
+    /**
+     * Get the number of columns in V, which is also the number of rows in the weights.
+     * @return Returns the number of columns.
+     */
+    Index numColumns() const {
+        return isHalfPrecision() ? V_half.cols() : V.cols();
+    }
+
+    Matrix<half, Dynamic, Dynamic> V_half; // V stored in half precision by compact(). Only used when V is empty
+    HNSW index; // Approximate nearest neighbour index over the columns of W_all
+    float faceError = 0; // Mean distance to the face subspace of the training images
+    std::vector<float> enrollErrors; // Distance to the face subspace of the recently enrolled images
+    VectorXf Vmu; // V^T*mu, so the mean does not have to be subtracted from the image before it is projected
+    MatrixXf G; // V^T*V. This is the identity matrix for Eigenfaces, but not for Fisherfaces
+    VectorXf W_norm2; // Squared norm of each column in W_all
+    bool quantized = false;
+    Matrix<int8_t, Dynamic, Dynamic> W_q; // W_all quantized to 8 bits. Each row is scaled separately
+    VectorXf W_scale; // Scale of each row in W_q
+    PartialDistStats partialStats;
+    bool classMatching = false;
+    size_t prototypesPerClass = 0;
+    MatrixXf R; // Centroid and prototypes of each class in weight space
+    VectorXf R_norm2; // Squared norm of each column in R
+    VectorXi R_labels; // Class of each column in R
+    VectorXi classStart; // The images of class c are stored in classMembers from classStart(c - 1) to classStart(c)
+    VectorXi classMembers; // Indices of the images grouped by class
+    Workspace workspace;
 };
 
 #endif
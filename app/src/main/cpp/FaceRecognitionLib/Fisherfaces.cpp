@@ -24,23 +24,93 @@
 using namespace std;
 using namespace Eigen;
 
-void Fisherfaces::train(const MatrixXi &images, const VectorXi &classes) {
-    this->n_pixels = images.rows();
+bool Fisherfaces::train(const Ref<const MatrixXu8> &images, const VectorXi &classes, const Progress &progress /*= Progress()*/) {
     size_t n_images = classes.size(); // Get number of images
     assert(classes.minCoeff() == 1); // Class labels should start at 1 and increment by 1
     int c = classes.maxCoeff(); // Calculate the number of classes
 
-    PCA::compute(images, n_images - c);
-    this->V = PCA::U; // Store PCA eigenvector temporarily, as it used for the projection
-    MatrixXf W_pca = project(images); // Project images onto subspace
+    if (PCA::compute(images, n_images - c, progress) == -1)
+        return false; // The memory budget is too small
+    this->classes = classes;
+    this->n_pixels = images.rows();
+    this->V.resize(0, 0);
+    this->V.swap(PCA::U); // Use the PCA eigenvectors for the projection without copying them
+    W_pca = project(images); // Project images onto subspace
+    this->V.swap(PCA::U);
     this->numComponents = LDA::compute(W_pca, classes, c - 1); // Copy number of components from LDA
 
 #ifndef NDEBUG
     cout << "Calculate weights for all images" << endl;
 #endif
     this->V = PCA::U*LDA::U; // Calculate Fisherfaces
-    this->W_all = project(images); // Calculate weights
+    this->W_all = LDA::U.transpose()*W_pca; // The weights follow directly from the PCA weights
+    LDA::U.resize(0, 0); // The LDA eigenvectors are recalculated by update(), so they are only needed to calculate V
+#ifndef NDEBUG
+    cout << "W_all: " << W_all.rows() << " x " << W_all.cols() << endl;
+#endif
+    allocateWorkspace();
+    updateIndex();
+    updateFaceError(images);
+    gallery = hashGallery(images);
+    return true;
+}
+
+bool Fisherfaces::update(const Ref<const VectorXu8> &image, int32_t label, size_t n_removed /*= 0*/) {
+    if (W_pca.cols() == 0 || W_pca.cols() != W_all.cols() || n_removed >= (size_t) W_pca.cols())
+        return false; // The PCA weights are not stored when the model is loaded from a file
+    if (S.size() == 0)
+        return false; // Images have been enrolled without updating the scatter matrices
+
+    for (size_t i = 0; i < n_removed; i++) {
+        if (!LDA::remove(W_pca.col(i), classes(i))) {
+            W_pca.resize(0, 0); // The scatter matrices are no longer valid, so the model has to be retrained
+            return false;
+        }
+    }
+
+    const size_t n_images = W_pca.cols() - n_removed + 1;
+    MatrixXf W_pca_new(W_pca.rows(), n_images);
+    W_pca_new.leftCols(n_images - 1) = W_pca.rightCols(n_images - 1);
+    W_pca_new.col(n_images - 1) = PCA::U.transpose()*(image.cast<float>() - mu); // Project image onto the PCA subspace
+    LDA::add(W_pca_new.col(n_images - 1), label);
+
+    VectorXi classes_new(n_images);
+    classes_new << classes.tail(n_images - 1), label;
+
+    W_pca.swap(W_pca_new);
+    classes.swap(classes_new);
+    gallery = hashGallery(gallery, image, n_removed);
+
+    const int32_t K = LDA::solve(LDA::numClasses() - 1);
+    if (K == 0 || !LDA::U.allFinite()) {
+        W_pca.resize(0, 0);
+        return false; // The within-class scatter matrix is singular
+    }
+
+    this->numComponents = K;
+    this->V = PCA::U*LDA::U; // Calculate Fisherfaces
+    this->W_all = LDA::U.transpose()*W_pca; // The weights follow directly from the PCA weights
+    LDA::U.resize(0, 0);
 #ifndef NDEBUG
     cout << "W_all: " << W_all.rows() << " x " << W_all.cols() << endl;
 #endif
+    allocateWorkspace();
+    updateIndex();
+    return true;
+}
+
+void Fisherfaces::releaseUpdateData() {
+    if (!warmStart)
+        PCA::U.resize(0, 0);
+    W_pca.resize(0, 0); // update() checks this, so it returns false instead of using the released data
+    LDA::release();
+}
+
+void Fisherfaces::compact(bool halfPrecision /*= false*/) {
+    Facebase::compact(halfPrecision);
+    releaseUpdateData();
+}
+
+size_t Fisherfaces::modelBytes() const {
+    return Facebase::modelBytes() + sizeof(float)*W_pca.size() + LDA::modelBytes();
 }
@@ -30,10 +30,47 @@ class Fisherfaces : public Facebase, public LDA {
 public:
     /**
      * Train Fisherfaces.
-     * @param images  Each images represented as a column vector.
-     * @param classes Class labels should start at 1 and increment by 1.
+     * @param  images   Each images represented as a column vector.
+     * @param  classes  Class labels should start at 1 and increment by 1.
+     * @param  progress If set, then the PCA components found before the PCA is done are reported. These can be used to train Eigenfaces,
+     *                  while Fisherfaces need the complete PCA. See PCA::compute().
+     * @return          Returns false if the memory budget of the arena is too small. The model is not modified in that case.
      */
-    void train(const MatrixXi &images, const VectorXi &classes);
+    bool train(const Ref<const MatrixXu8> &images, const VectorXi &classes, const Progress &progress = Progress());
+
+    /**
+     * Remove the oldest images and add a new image to the trained model.
+     * The image is projected onto the PCA subspace found during training and the scatter matrices are updated,
+     * so only the Eigen decomposition of LDA has to be redone.
+     * @param  image     New image represented as a column vector.
+     * @param  label     Class of the new image. Set this to one larger than the number of classes in order to add a new class.
+     * @param  n_removed Number of images to remove from the start of the model.
+     * @return           Returns false if the model can not be updated and needs to be retrained.
+     */
+    bool update(const Ref<const VectorXu8> &image, int32_t label, size_t n_removed = 0);
+
+    /**
+     * Release the PCA eigenvectors, the PCA weights and the scatter matrices, which are only kept so update() can be used.
+     * update() returns false afterwards, so the model has to be retrained when the images change.
+     * The PCA eigenvectors are kept if warmStart is set, as the next training starts from them.
+     */
+    void releaseUpdateData();
+
+    /**
+     * Release everything that is only needed to train or update the model, including the PCA and the scatter matrices.
+     * See Facebase::compact().
+     * @param halfPrecision Store V in half precision.
+     */
+    void compact(bool halfPrecision = false);
+
+    /**
+     * Get the number of bytes used by the matrices of the model, including the data kept for incremental updates.
+     * @return Returns the number of bytes.
+     */
+    size_t modelBytes() const;
+
+private:
+    MatrixXf W_pca; // Weights of all images in the PCA subspace
 };
 
 #endif
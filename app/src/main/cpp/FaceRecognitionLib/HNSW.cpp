@@ -0,0 +1,246 @@
+/* Copyright (C) 2016 Kristian Sloth Lauszus. All rights reserved.
+
+ This software may be distributed and modified under the terms of the GNU
+ General Public License version 2 (GPL2) as published by the Free Software
+ Foundation and appearing in the file GPL2.TXT included in the packaging of
+ this file. Please note that GPL2 Section 2[b] requires that all works based
+ on this software must also be made publicly available under the terms of
+ the GPL2 ("Copyleft").
+
+ Contact information
+ -------------------
+
+ Kristian Sloth Lauszus
+ Web      :  http://www.lauszus.com
+ e-mail   :  lauszus@gmail.com
+*/
+
+
+#include <algorithm>
+#include <cmath>
+#include <functional>
+#include <limits>
+
+#include <Eigen/Dense> // http://eigen.tuxfamily.org
+
+#include "HNSW.h"
+
+using namespace std;
+using namespace Eigen;
+
+HNSW::HNSW(size_t M /*= 16*/, size_t efConstruction /*= 100*/) : M(M), M0(2*M), efConstruction(efConstruction), mL(1/log((double) M)) {
+}
+
+void HNSW::build(const MatrixXf &points) {
+    clear();
+    dim = points.rows();
+    data.reserve(points.size());
+    reserveScratch(max(efConstruction, M0) + 1);
+    for (Index i = 0; i < points.cols(); i++)
+        addPoint(points.col(i).data());
+}
+
+void HNSW::add(const VectorXf &point) {
+    if (levels.empty())
+        dim = point.size();
+    assert(point.size() == dim);
+    reserveScratch(max(efConstruction, M0) + 1);
+    addPoint(point.data());
+}
+
+void HNSW::reserveScratch(size_t n) {
+    entryScratch.reserve(n);
+    resultScratch.reserve(n);
+    candidateHeap.reserve(n);
+    nearestHeap.reserve(n);
+}
+
+void HNSW::clear() {
+    data.clear();
+    levels.clear();
+    links.clear();
+    visited.clear();
+    entryPoint = 0;
+    maxLevel = -1;
+    removed = 0;
+    dim = 0;
+    gen.seed();
+}
+
+void HNSW::removeFront(size_t n) {
+    removed = min(removed + n, levels.size());
+    if (removed == 0 || removed*2 <= levels.size())
+        return;
+
+    // Most of the graph consists of removed nodes, so rebuild it using the remaining points
+    const Index d = dim;
+    const vector<float> remaining(data.begin() + removed*d, data.end());
+    clear();
+    dim = d;
+    for (size_t i = 0; i < remaining.size(); i += d)
+        addPoint(&remaining[i]);
+}
+
+float HNSW::distance(const float *a, const float *b) const {
+    return (Map<const VectorXf>(a, dim) - Map<const VectorXf>(b, dim)).squaredNorm();
+}
+
+void HNSW::addPoint(const float *p) {
+    const uint32_t node = levels.size();
+    data.insert(data.end(), p, p + dim);
+    uniform_real_distribution<double> uniform(0, 1);
+    const int level = (int) (-log(1 - uniform(gen))*mL); // Exponentially decaying probability of using higher levels
+    levels.push_back(level);
+    links.emplace_back(level + 1);
+    visited.push_back(0);
+
+    if (maxLevel < 0) { // First node
+        entryPoint = node;
+        maxLevel = level;
+        return;
+    }
+
+    const float *q = point(node);
+    vector<Candidate> &entryPoints = entryScratch, &result = resultScratch;
+    entryPoints.assign(1, Candidate(distance(q, point(entryPoint)), entryPoint));
+    for (int l = maxLevel; l > level; l--) { // Greedy search through the upper levels
+        searchLayer(q, entryPoints, 1, l, false, result);
+        entryPoints.swap(result);
+    }
+
+    for (int l = min(level, maxLevel); l >= 0; l--) {
+        searchLayer(q, entryPoints, efConstruction, l, false, result);
+        vector<Candidate> selected = result;
+        selectNeighbours(selected, M);
+        for (const Candidate &s : selected) {
+            links[node][l].push_back(s.second);
+
+            vector<uint32_t> &neighbours = links[s.second][l];
+            neighbours.push_back(node);
+            const size_t maxNeighbours = l == 0 ? M0 : M;
+            if (neighbours.size() > maxNeighbours) { // Shrink the connections of the neighbour
+                vector<Candidate> candidates;
+                for (uint32_t n : neighbours)
+                    candidates.push_back(Candidate(distance(point(s.second), point(n)), n));
+                sort(candidates.begin(), candidates.end());
+                selectNeighbours(candidates, maxNeighbours);
+                neighbours.clear();
+                for (const Candidate &c : candidates)
+                    neighbours.push_back(c.second);
+            }
+        }
+        entryPoints.swap(result);
+    }
+
+    if (level > maxLevel) {
+        maxLevel = level;
+        entryPoint = node;
+    }
+}
+
+void HNSW::searchLayer(const float *query, const vector<Candidate> &entryPoints, size_t ef, int level, bool skipRemoved, vector<Candidate> &result) {
+    if (++visitedTag == 0) { // Reset the tags when the counter wraps around
+        fill(visited.begin(), visited.end(), 0);
+        visitedTag = 1;
+    }
+
+    // The heaps are stored in the scratch buffers, so their memory is reused between searches
+    vector<Candidate> &candidates = candidateHeap; // Closest candidate first
+    vector<Candidate> &nearest = nearestHeap; // Furthest of the nearest points first
+    candidates.clear();
+    nearest.clear();
+    auto pushCandidate = [&](const Candidate &c) {
+        candidates.push_back(c);
+        push_heap(candidates.begin(), candidates.end(), greater<Candidate>());
+    };
+    auto pushNearest = [&](const Candidate &c) {
+        nearest.push_back(c);
+        push_heap(nearest.begin(), nearest.end());
+    };
+    auto popNearest = [&]() {
+        pop_heap(nearest.begin(), nearest.end());
+        nearest.pop_back();
+    };
+
+    for (const Candidate &c : entryPoints) {
+        visited[c.second] = visitedTag;
+        pushCandidate(c);
+        if (!skipRemoved || c.second >= removed)
+            pushNearest(c);
+    }
+    while (nearest.size() > ef)
+        popNearest();
+
+    while (!candidates.empty()) {
+        const Candidate c = candidates.front();
+        const float bound = nearest.empty() ? numeric_limits<float>::infinity() : nearest.front().first;
+        if (c.first > bound && nearest.size() >= ef)
+            break; // All remaining candidates are further away than the nearest points found
+        pop_heap(candidates.begin(), candidates.end(), greater<Candidate>());
+        candidates.pop_back();
+
+        for (uint32_t n : links[c.second][level]) {
+            if (visited[n] == visitedTag)
+                continue;
+            visited[n] = visitedTag;
+
+            const float d = distance(query, point(n));
+            if (nearest.size() < ef || d < nearest.front().first) {
+                pushCandidate(Candidate(d, n));
+                if (!skipRemoved || n >= removed) {
+                    pushNearest(Candidate(d, n));
+                    if (nearest.size() > ef)
+                        popNearest();
+                }
+            }
+        }
+    }
+
+    sort_heap(nearest.begin(), nearest.end()); // Sorted by increasing distance
+    result.assign(nearest.begin(), nearest.end());
+}
+
+void HNSW::selectNeighbours(vector<Candidate> &candidates, size_t maxNeighbours) const {
+    // Only keep a candidate if it is closer to the point than to all the selected neighbours, so the neighbours point in different directions
+    if (candidates.size() <= maxNeighbours)
+        return;
+
+    vector<Candidate> selected;
+    for (const Candidate &c : candidates) {
+        if (selected.size() >= maxNeighbours)
+            break;
+        bool keep = true;
+        for (const Candidate &s : selected) {
+            if (distance(point(c.second), point(s.second)) < c.first) {
+                keep = false;
+                break;
+            }
+        }
+        if (keep)
+            selected.push_back(c);
+    }
+    candidates.swap(selected);
+}
+
+size_t HNSW::search(const VectorXf &query, size_t k, size_t ef, int32_t *indices, float *dist2) {
+    if (size() == 0 || k == 0)
+        return 0;
+    assert(query.size() == dim);
+
+    const float *q = query.data();
+    reserveScratch(max(max(ef, k), M0) + 1); // Only allocates if a larger ef is used than before
+    vector<Candidate> &entryPoints = entryScratch, &result = resultScratch;
+    entryPoints.assign(1, Candidate(distance(q, point(entryPoint)), entryPoint));
+    for (int l = maxLevel; l > 0; l--) { // Greedy search through the upper levels
+        searchLayer(q, entryPoints, 1, l, false, result);
+        entryPoints.swap(result);
+    }
+    searchLayer(q, entryPoints, max(ef, k), 0, true, result);
+
+    const size_t n = min(k, result.size());
+    for (size_t i = 0; i < n; i++) {
+        indices[i] = result[i].second - removed; // Index of the point counted from the oldest point which has not been removed
+        dist2[i] = result[i].first;
+    }
+    return n;
+}
@@ -0,0 +1,124 @@
+/* Copyright (C) 2016 Kristian Sloth Lauszus. All rights reserved.
+
+ This software may be distributed and modified under the terms of the GNU
+ General Public License version 2 (GPL2) as published by the Free Software
+ Foundation and appearing in the file GPL2.TXT included in the packaging of
+ this file. Please note that GPL2 Section 2[b] requires that all works based
+ on this software must also be made publicly available under the terms of
+ the GPL2 ("Copyleft").
+
+ Contact information
+ -------------------
+
+ Kristian Sloth Lauszus
+ Web      :  http://www.lauszus.com
+ e-mail   :  lauszus@gmail.com
+*/
+
+
+#ifndef __hnsw_h__
+#define __hnsw_h__
+
+#include <cstdint>
+#include <random>
+#include <utility>
+#include <vector>
+#include <Eigen/Dense> // http://eigen.tuxfamily.org
+
+using namespace Eigen;
+
+/**
+ * Approximate nearest neighbour index based on "Efficient and robust approximate nearest neighbor search using
+ * Hierarchical Navigable Small World graphs" by Y. A. Malkov and D. A. Yashunin.
+ * Points are appended at the end and removed from the front, so they are numbered the same way as the images in Facebase.
+ */
+class HNSW {
+public:
+    /**
+     * @param M              Number of neighbours of each point. Twice as many are used at the bottom layer.
+     * @param efConstruction Number of candidates considered when a point is added.
+     */
+    HNSW(size_t M = 16, size_t efConstruction = 100);
+
+    /**
+     * Build the index from scratch.
+     * @param points Each point is represented as a column vector.
+     */
+    void build(const MatrixXf &points);
+
+    /**
+     * Add a point to the end of the index.
+     * @param point Point to add.
+     */
+    void add(const VectorXf &point);
+
+    /**
+     * Remove the oldest points. The points are still used to navigate the graph,
+     * but they are never returned. The index is rebuilt when more than half of the points have been removed.
+     * @param n Number of points to remove from the front.
+     */
+    void removeFront(size_t n);
+
+    /**
+     * Remove all points.
+     */
+    void clear();
+
+    /**
+     * Find the approximate nearest points.
+     * @param  query   Query point.
+     * @param  k       Number of points to find.
+     * @param  ef      Number of candidates considered. Larger values increase the recall at the cost of speed.
+     * @param  indices Array with room for k indices. The indices are sorted by increasing distance.
+     * @param  dist2   Array with room for k squared distances.
+     * @return         Returns the number of points found.
+     */
+    size_t search(const VectorXf &query, size_t k, size_t ef, int32_t *indices, float *dist2);
+
+    /**
+     * Get the number of points in the index.
+     * @return Returns the number of points which have not been removed.
+     */
+    size_t size() const {
+        return levels.size() - removed;
+    }
+
+private:
+    typedef std::pair<float, uint32_t> Candidate; // Squared distance and node
+
+    void addPoint(const float *p);
+    float distance(const float *a, const float *b) const;
+    const float *point(uint32_t node) const {
+        return &data[(size_t) node*dim];
+    }
+    void searchLayer(const float *query, const std::vector<Candidate> &entryPoints, size_t ef, int level, bool skipRemoved, std::vector<Candidate> &result);
+    void selectNeighbours(std::vector<Candidate> &candidates, size_t maxNeighbours) const;
+
+    /**
+     * Make sure that the buffers used by the searches can hold a number of candidates.
+     * @param n Number of candidates.
+     */
+    void reserveScratch(size_t n);
+
+    size_t M, M0, efConstruction;
+    double mL; // Normalization factor for the level generation
+
+    Index dim = 0; // Dimension of the points
+    std::vector<float> data; // The index keeps a copy of the points, so removed points can still be used to navigate the graph
+    std::vector<int> levels; // Top level of each node
+    std::vector<std::vector<std::vector<uint32_t>>> links; // Neighbours of each node at each level
+    uint32_t entryPoint = 0;
+    int maxLevel = -1;
+    size_t removed = 0; // All nodes before this have been removed
+
+    std::vector<uint32_t> visited; // The node has been visited in the current search if this is equal to visitedTag
+    uint32_t visitedTag = 0;
+
+    // Buffers used by the searches. They keep their capacity, so a search only allocates memory if it needs more candidates than any search before it
+    std::vector<Candidate> entryScratch, resultScratch; // Entry points and result of the search of a layer
+    std::vector<Candidate> candidateHeap; // Min-heap of the candidates, which is driven using push_heap() and pop_heap()
+    std::vector<Candidate> nearestHeap; // Max-heap of the nearest points found so far
+    std::mt19937 gen; // Use the same seed every time, so the index is reproducible
+};
+
+#endif
@@ -52,54 +52,128 @@ int32_t LDA::compute(const MatrixXf &X, const VectorXi &classes, int32_t numComp
     cout << "c: " << c << endl;
 #endif // NDEBUG
 
+    classCount = VectorXi::Zero(c);
+    classSum = MatrixXd::Zero(dim, c);
+    for (size_t j = 0; j < N; j++) { // Accumulate the sum of each class in a single pass over the data
+        classCount(classes(j) - 1)++;
+        classSum.col(classes(j) - 1) += X.col(j).cast<double>();
+    }
+    const MatrixXd mu_classes = classSum*classCount.cast<double>().cwiseInverse().asDiagonal(); // Calculate the mean of each class
+
+    MatrixXd X_centered = X.cast<double>();
+    #pragma omp parallel for num_threads(nbThreads())
+    for (Index j = 0; j < (Index) N; j++)
+        X_centered.col(j) -= mu_classes.col(classes(j) - 1); // Subtract the class means from all columns, thus centering the data
+    // cout << X_centered.format(OctaveFmt) << endl;
+
+    Sw.noalias() = X_centered*X_centered.transpose(); // Calculate within-class scatter. The matrix product is parallelized by Eigen
+    P.noalias() = mu_classes*mu_classes.transpose(); // Used to calculate the between-class scatter
+    meanSum = mu_classes.rowwise().sum();
+    sum = classSum.rowwise().sum();
+
+    return solve(numComponents);
+}
+
+void LDA::add(const VectorXf &x, int32_t label) {
+    assert(label >= 1 && label <= classCount.size() + 1); // Labels must be added in increasing order
+    const Index i = label - 1;
+    if (i == classCount.size()) { // Add new class
+        classCount.conservativeResize(i + 1);
+        classCount(i) = 0;
+        classSum.conservativeResize(NoChange, i + 1);
+        classSum.col(i).setZero();
+    }
+
+    const VectorXd xd = x.cast<double>();
+    const int n = classCount(i);
+    VectorXd mu_class = VectorXd::Zero(x.size());
+    if (n > 0)
+        mu_class = classSum.col(i)/n;
+    const VectorXd diff = xd - mu_class;
+    Sw += diff*diff.transpose()*((double) n/(n + 1)); // Welford's update of the within-class scatter
+
+    classCount(i)++;
+    classSum.col(i) += xd;
+    sum += xd;
+    const VectorXd mu_class_new = classSum.col(i)/classCount(i);
+    P += mu_class_new*mu_class_new.transpose() - mu_class*mu_class.transpose();
+    meanSum += mu_class_new - mu_class;
+}
+
+bool LDA::remove(const VectorXf &x, int32_t label) {
+    assert(label >= 1 && label <= classCount.size());
+    const Index i = label - 1;
+    const int n = classCount(i);
+    if (n <= 1)
+        return false; // The class would be empty
+
+    const VectorXd xd = x.cast<double>();
+    const VectorXd mu_class = classSum.col(i)/n;
+    classCount(i)--;
+    classSum.col(i) -= xd;
+    sum -= xd;
+    const VectorXd mu_class_new = classSum.col(i)/classCount(i);
+    const VectorXd diff = xd - mu_class_new;
+    Sw -= diff*diff.transpose()*((double) (n - 1)/n); // Reverse of the update done in add()
+    P += mu_class_new*mu_class_new.transpose() - mu_class*mu_class.transpose();
+    meanSum += mu_class_new - mu_class;
+    return true;
+}
+
+int32_t LDA::solve(int32_t numComponents) {
+    const size_t dim = Sw.rows();
+    const int c = classCount.size();
+    const size_t N = classCount.sum();
+
     numComponents = min(c - 1, numComponents); // Make sure number of components is valid
+    numComponents = min((int32_t) dim, numComponents);
 #ifndef NDEBUG
     cout << "numComponents: " << numComponents << endl;
 #endif // NDEBUG
 
-    if (dim == 0 || numComponents == 0) {
+    if (dim == 0 || numComponents <= 0) {
         U = MatrixXf::Zero(dim, 1); // Set all element to zero
         return 0; // Make sure dimension is valid
     }
 
-    VectorXf mu = X.rowwise().mean(); // Calculate the mean along each row
-
-    vector<size_t> idx = sortIndexes(classes); // Get indices corresponding to the different classes sorted by the class number
-    //for (auto i : idx) cout << "classes(" << i << "): " << classes(i) << endl;
-    auto iterator = idx.begin(); // Get iterator
-
-    MatrixXf Sw = MatrixXf::Zero(dim, dim);
-    MatrixXf Sb = MatrixXf::Zero(dim, dim);
-    // cout << X.format(OctaveFmt) << endl;
-    for (int i = 0; i < c; i++) {
-        int class_count = count(classes.data(), classes.data() + classes.size(), i + 1); // Get the number of times that specific class occurs
-        // cout << "class_count: " << class_count << endl;
-
-        MatrixXf X_class(dim, class_count);
-        for (int j = 0; j < class_count; j++) {
-            // cout << "classes(" << iterator[j] << "): " << classes(iterator[j]) << endl;
-            X_class.block(0, j, dim, 1) = X.block(0, iterator[j], dim, 1); // Copy data from original image, each image at a time based on the sorted indices
-        }
-        advance(iterator, class_count); // Advance iterator by the class count
-        // cout << X_class.format(OctaveFmt) << endl;
-
-        VectorXf mu_class = X_class.rowwise().mean(); // Calculate the mean along each row
-        X_class = X_class.colwise() - mu_class; // Subtract means from all columns, thus centering the data
-        VectorXf mu_vector = mu_class - mu;
-
-        Sw += X_class*X_class.transpose(); // Calculate within-class scatter
-        Sb += N*mu_vector*mu_vector.transpose(); // Calculate between-class scatter
-    }
+    // Between-class scatter: N*sum_i((mu_i - mu)*(mu_i - mu)^T) expanded, so it only depends on the running sums
+    const VectorXd mu = sum/(double) N;
+    const MatrixXd Sb = (double) N*(P - mu*meanSum.transpose() - meanSum*mu.transpose() + (double) c*mu*mu.transpose());
 
-    EigenSolver<MatrixXf> es(Sw.inverse()*Sb); // Solves eigenvalues and eigenvectors of the matrix
-    VectorXf D = es.eigenvalues().real();
-    idx = sortIndexes(D); // Get indices sorted by increasing Eigenvalues
-    // for (auto i : idx) cout << "D(" << i << "): " << D(i) << endl;
-    MatrixXf V = es.eigenvectors().real();
-    U = MatrixXf(dim, numComponents); // Allocate memory
-    for (int32_t i = 0; i < numComponents; i++) // Sort Eigenvectors according to Eigenvalues in decreasing order
-        U.col(i) = V.col(idx[(idx.size() - 1) - i]); // Reverse indices, as we want them to be sorted by decreasing Eigenvalues
+    LLT<MatrixXd> llt(Sw);
+    if (llt.info() == Success) {
+        GeneralizedSelfAdjointEigenSolver<MatrixXd> es(Sb, Sw); // Solves Sb*v = lambda*Sw*v using the Cholesky decomposition of Sw
+        U = es.eigenvectors().rightCols(numComponents).rowwise().reverse().cast<float>(); // Eigenvalues are sorted in increasing order, so reverse them
+    } else { // Sw is singular, so fall back to the general Eigen solver
+#ifndef NDEBUG
+        cout << "Sw is not positive definite" << endl;
+#endif // NDEBUG
+        EigenSolver<MatrixXf> es(Sw.cast<float>().inverse()*Sb.cast<float>()); // Solves eigenvalues and eigenvectors of the matrix
+        VectorXf D = es.eigenvalues().real();
+        vector<size_t> idx = sortIndexes(D); // Get indices sorted by increasing Eigenvalues
+        // for (auto i : idx) cout << "D(" << i << "): " << D(i) << endl;
+        MatrixXf V = es.eigenvectors().real();
+        U = MatrixXf(dim, numComponents); // Allocate memory
+        for (int32_t i = 0; i < numComponents; i++) // Sort Eigenvectors according to Eigenvalues in decreasing order
+            U.col(i) = V.col(idx[(idx.size() - 1) - i]); // Reverse indices, as we want them to be sorted by decreasing Eigenvalues
+    }
+    U.colwise().normalize(); // The generalized Eigenvectors are normalized with respect to Sw
     // cout << U.block(0, 0, 10, 10).format(OctaveFmt) << endl;
 
     return numComponents;
 }
+
+void LDA::release() {
+    U.resize(0, 0);
+    Sw.resize(0, 0);
+    P.resize(0, 0);
+    meanSum.resize(0);
+    sum.resize(0);
+    classSum.resize(0, 0);
+    classCount.resize(0);
+}
+
+size_t LDA::modelBytes() const {
+    return sizeof(float)*U.size() + sizeof(double)*(Sw.size() + P.size() + meanSum.size() + sum.size() + classSum.size()) +
+           sizeof(int)*classCount.size();
+}
@@ -33,8 +33,58 @@ public:
      */
     int32_t compute(const MatrixXf &X, const VectorXi &classes, int32_t numComponents);
 
+    /**
+     * Add a sample to the scatter matrices. This is done in O(dim^2).
+     * @param x     Sample.
+     * @param label Class of the sample. Set this to one larger than the number of classes in order to add a new class.
+     */
+    void add(const VectorXf &x, int32_t label);
+
+    /**
+     * Remove a sample from the scatter matrices. This is done in O(dim^2).
+     * @param  x     Sample.
+     * @param  label Class of the sample.
+     * @return       Returns false if the class would end up empty. The scatter matrices are not modified in that case.
+     */
+    bool remove(const VectorXf &x, int32_t label);
+
+    /**
+     * Computes the Eigenvectors from the current scatter matrices.
+     * @param  numComponents Number of components used for the analysis.
+     * @return               Returns the number of components used.
+     */
+    int32_t solve(int32_t numComponents);
+
+    /**
+     * Get the number of classes.
+     * @return Returns the number of classes.
+     */
+    int32_t numClasses() const {
+        return classCount.size();
+    }
+
+    /**
+     * Free the Eigenvectors and the scatter matrices. Samples can not be added or removed afterwards.
+     */
+    void release();
+
+    /**
+     * Get the number of bytes used by the Eigenvectors and the scatter matrices.
+     * @return Returns the number of bytes.
+     */
+    size_t modelBytes() const;
+
 protected:
     MatrixXf U; // Eigenvectors
+
+private:
+    // The scatter matrices are kept as running sums in double precision, so they can be updated one sample at a time
+    MatrixXd Sw; // Within-class scatter
+    MatrixXd P; // Sum of the outer products of the class means
+    VectorXd meanSum; // Sum of the class means
+    VectorXd sum; // Sum of all samples
+    MatrixXd classSum; // Sum of the samples in each class
+    VectorXi classCount; // Number of samples in each class
 };
 
 #endif
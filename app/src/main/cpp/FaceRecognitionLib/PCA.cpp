@@ -15,7 +15,10 @@
  e-mail   :  lauszus@gmail.com
 */
 
+#include <algorithm>
+#include <functional>
 #include <iostream>
+#include <random>
 
 #include <Eigen/Dense> // http://eigen.tuxfamily.org
 #include <RedSVD/RedSVD-h> // https://github.com/ntessore/redsvd-h
@@ -28,62 +31,335 @@ using namespace Eigen;
 // See: http://eigen.tuxfamily.org/dox/structEigen_1_1IOFormat.html
 static IOFormat OctaveFmt(StreamPrecision, 0, ", ", ";\n", "", "", "[", "]");
 
-int32_t PCA::compute(const MatrixXi &images, int32_t numComponents /*= -1*/) {
+static const Index blockSize = 256; // Maximum number of images or rows centered at a time
+static const Index oversampling = 10; // Number of extra samples used to capture the range of the images
+static const int powerIterations = 2; // Improves the accuracy when the singular values decay slowly
+static const Index warmOversampling = 8; // Extra vectors used by a warm start to capture the directions that are new since the previous training
+
+// Center the columns j to j + block.cols() of the images. The block is converted and centered in place, so no other temporaries are needed
+static void centerBlock(const Ref<const MatrixXu8> &images, const VectorXf &mu, Index j, Ref<MatrixXf> block) {
+    block = images.middleCols(j, block.cols()).cast<float>();
+    block.colwise() -= mu;
+}
+
+// Center the rows i to i + block.rows() of the images in place
+static void centerRows(const Ref<const MatrixXu8> &images, const VectorXf &mu, Index i, Ref<MatrixXf> block) {
+    block = images.middleRows(i, block.rows()).cast<float>();
+    block.colwise() -= mu.segment(i, block.rows());
+}
+
+// Upper bound of the temporaries allocated when the largest Eigenvalues of the n x n Gram matrix are found by topEigen() or
+// when numComponents singular values of the n x n covariance matrix are found by RedSVD. These are not stored in the arena
+static size_t solverBytes(Index n, bool gram, int32_t numComponents, bool warm = false) {
+    if (gram && warm) // The starting vectors and the about seven n x p matrices used by warmEigen(), where 2*p <= n, or the cold solver if it does not converge
+        return sizeof(float)*(4*n*n + 256*n + 2048);
+    if (gram) // The dense solver and the Eigenvectors found so far, or the Eigenvectors and the blocks used by the subspace iteration
+        return sizeof(float)*(2*n*n + 256*n + 2048);
+    return sizeof(float)*(n*n + 8*n*numComponents + 2048); // RedSVD copies the covariance matrix
+}
+
+// Upper bound of the memory allocated by computeRandomized() using l samples: the blocks of centered images, Q, its QR decomposition,
+// the Eigenvectors, the test matrix, Z and the SVD of Z
+static size_t randomizedBytes(Index n_pixels, Index n_images, Index l) {
+    return sizeof(float)*((size_t) n_pixels*(min(blockSize, n_images) + 4*l) + (size_t) n_images*5*l + 3*l*l + 2048);
+}
+
+static MatrixXf orthonormalize(const MatrixXf &A) {
+    HouseholderQR<MatrixXf> qr(A);
+    return qr.householderQ()*MatrixXf::Identity(A.rows(), A.cols());
+}
+
+// Computes the K largest eigenpairs of the symmetric matrix A in descending order using the dense solver
+static void denseEigen(const Ref<const MatrixXf> &A, Index K, MatrixXf &V, VectorXf &D) {
+    SelfAdjointEigenSolver<MatrixXf> es(A); // Eigenvalues are sorted in increasing order
+    V = es.eigenvectors().rightCols(K).rowwise().reverse();
+    D = es.eigenvalues().tail(K).reverse().cwiseMax(0);
+}
+
+// Computes the largest eigenpairs of the symmetric positive semi-definite matrix A in descending order using block subspace iteration with deflation.
+// If K is -1, blocks are extracted until the eigenvalues sum to at least stopEnergy instead.
+// If set, converged is called with the eigenpairs found so far before each additional block is extracted.
+static void topEigen(const Ref<const MatrixXf> &A, int32_t K, float stopEnergy, MatrixXf &V, VectorXf &D,
+                     const function<void(const MatrixXf &V, const VectorXf &D)> &converged = nullptr) {
+    static const Index eigenBlockSize = 16; // Number of eigenpairs extracted at a time
+    static const Index eigenOversampling = 8; // Extra vectors used to speed up the convergence of the block
+    static const int maxIterations = 300;
+    static const float tolerance = 1e-4f; // Residual relative to the largest eigenvalue in the block
+
+    const Index n = A.rows();
+    const Index maxK = K == -1 ? n - 1 : K;
+    if (K != -1 && 2*(K + eigenOversampling) > n) { // Most of the spectrum is needed, so the blocks would be discarded for the dense solver anyway
+#ifndef NDEBUG
+        cout << "Using the dense Eigen solver for " << K << " of " << n << " Eigenvalues" << endl;
+#endif // NDEBUG
+        denseEigen(A, maxK, V, D);
+        return;
+    }
+    mt19937 gen; // Use the same seed every time, so the result is reproducible
+    normal_distribution<float> dist;
+
+    V.resize(n, 0);
+    D.resize(0);
+    float cumulativeEnergy = 0;
+    while (V.cols() < maxK && (K != -1 || V.cols() < 2 || cumulativeEnergy < stopEnergy)) {
+        const Index found = V.cols();
+        if (converged && found > 0)
+            converged(V, D);
+        const Index b = min(eigenBlockSize, maxK - found);
+        const Index p = min(b + eigenOversampling, n - found);
+        if (2*(found + p) > n) { // Most of the spectrum is needed, so the dense solver is faster
+#ifndef NDEBUG
+            cout << "Using the dense Eigen solver after extracting " << found << " Eigenvalues" << endl;
+#endif // NDEBUG
+            denseEigen(A, maxK, V, D);
+            return;
+        }
+
+        MatrixXf X(n, p), Y;
+        for (Index i = 0; i < X.size(); i++)
+            X.data()[i] = dist(gen);
+        for (int iter = 0; iter < maxIterations; iter++) {
+            if (found > 0)
+                X -= V*(V.transpose()*X); // Deflate the Eigenvectors already found
+            X = orthonormalize(X);
+            Y.noalias() = A*X;
+            if (found > 0)
+                Y -= V*(V.transpose()*Y);
+
+            SelfAdjointEigenSolver<MatrixXf> es(X.transpose()*Y); // Rayleigh-Ritz projection
+            const MatrixXf W = es.eigenvectors().rowwise().reverse();
+            const VectorXf lambda = es.eigenvalues().reverse();
+            X = X*W;
+            Y = Y*W;
+
+            bool converged = true;
+            for (Index i = 0; i < b && converged; i++)
+                converged = (Y.col(i) - lambda(i)*X.col(i)).norm() <= tolerance*lambda(0);
+            if (converged || iter == maxIterations - 1) {
+#ifndef NDEBUG
+                cout << "Extracted Eigenvalues " << found << " to " << found + b - 1 << " in " << iter + 1 << " iterations" << endl;
+#endif // NDEBUG
+                V.conservativeResize(NoChange, found + b);
+                V.rightCols(b) = X.leftCols(b);
+                D.conservativeResize(found + b);
+                D.tail(b) = lambda.head(b).cwiseMax(0);
+                cumulativeEnergy += D.tail(b).sum();
+                break;
+            }
+            X = Y; // Power step
+        }
+    }
+}
+
+// Number of vectors used by warmEigen() when it is started from the given number of vectors
+static Index warmSubspace(Index seeded, int32_t K, Index n) {
+    return min<Index>(max<Index>(seeded, K) + warmOversampling, n);
+}
+
+// Computes the largest eigenpairs of the symmetric positive semi-definite matrix A in descending order using subspace iteration started from X0.
+// X0 should span approximately the same subspace as the wanted Eigenvectors, e.g. the Eigenvectors before a few images were changed,
+// so usually only one or two iterations are needed. If K is -1, the eigenvalues must sum to at least stopEnergy instead.
+// Returns false if the subspace is too small to contain the energy or does not converge, so the cold solver should be used instead.
+static bool warmEigen(const Ref<const MatrixXf> &A, const MatrixXf &X0, int32_t K, float stopEnergy, MatrixXf &V, VectorXf &D, int32_t &iterations) {
+    static const int maxIterations = 20; // The subspace has moved too much if it has not converged by now, so a cold start is faster
+    static const float tolerance = 1e-4f; // Residual relative to the largest eigenvalue
+
+    const Index n = A.rows();
+    const Index p = warmSubspace(X0.cols(), K, n);
+    if (2*p > n)
+        return false; // Most of the spectrum is needed, so the dense solver is faster
+    mt19937 gen; // Use the same seed every time, so the result is reproducible
+    normal_distribution<float> dist;
+
+    MatrixXf X(n, p), Y;
+    X.leftCols(X0.cols()) = X0;
+    for (Index i = n*X0.cols(); i < X.size(); i++)
+        X.data()[i] = dist(gen); // The remaining vectors are random
+    for (iterations = 1; iterations <= maxIterations; iterations++) {
+        X = orthonormalize(X);
+        Y.noalias() = A*X;
+
+        SelfAdjointEigenSolver<MatrixXf> es(X.transpose()*Y); // Rayleigh-Ritz projection
+        const MatrixXf W = es.eigenvectors().rowwise().reverse();
+        const VectorXf lambda = es.eigenvalues().reverse();
+        X = X*W;
+        Y = Y*W;
+
+        Index k = K;
+        if (K == -1) { // Number of eigenpairs containing the energy
+            float cumulativeEnergy = 0;
+            for (k = 0; k < p && (k < 2 || cumulativeEnergy < stopEnergy); k++)
+                cumulativeEnergy += max(lambda(k), 0.f);
+            if (cumulativeEnergy < stopEnergy) {
+                if (iterations > 1)
+                    return false; // The gallery has changed too much for the previous subspace
+                k = p; // The Ritz values underestimate the eigenvalues, so a power step is done first
+            }
+        }
+
+        bool converged = true;
+        for (Index i = 0; i < k && converged; i++)
+            converged = (Y.col(i) - lambda(i)*X.col(i)).norm() <= tolerance*lambda(0);
+        if (converged) {
+#ifndef NDEBUG
+            cout << "Warm start extracted " << k << " Eigenvalues in " << iterations << " iterations" << endl;
+#endif // NDEBUG
+            V = X.leftCols(k);
+            D = lambda.head(k).cwiseMax(0);
+            return true;
+        }
+        X = Y; // Power step
+    }
+#ifndef NDEBUG
+    cout << "Warm start did not converge in " << maxIterations << " iterations" << endl;
+#endif // NDEBUG
+    return false;
+}
+
+int32_t PCA::compute(const Ref<const MatrixXu8> &images, int32_t numComponents /*= -1*/, const Progress &progress /*= Progress()*/) {
 #ifndef NDEBUG
     cout << "Computing PCA" << endl;
 #endif // NDEBUG
 
-    const size_t n_pixels = images.rows();
-    const size_t n_images = images.cols();
+    const Index n_pixels = images.rows();
+    const Index n_images = images.cols();
 
     int32_t K = numComponents;
 
-    mu = images.cast<float>().rowwise().mean(); // Calculate the mean along each row
+    if (randomized) {
+        warmIterations = 0;
+        mu = VectorXf::Zero(n_pixels);
+        for (Index j = 0; j < n_images; j++)
+            mu += images.col(j).cast<float>();
+        mu /= n_images; // Calculate the mean along each row
+        reportInitialComponents(images, progress);
+        return computeRandomized(images, K);
+    }
+
+    // The Gram matrix of the centered images is used when there are fewer images than pixels, otherwise the covariance matrix is used.
+    // Either way the matrix is accumulated from blocks of the centered images, so the centered images are never stored
+    const bool gram = n_pixels >= n_images;
+    if (!gram && K == -1) {
+#ifndef NDEBUG
+        cout << "Please specify the number of singular values used" << endl;
+#endif // NDEBUG
+        assert(K != -1);
+    }
+    const Index n = gram ? n_images : n_pixels; // Size of the Gram or covariance matrix
+    const Index blockLength = gram ? n_images : n_pixels; // Number of floats in each row or column of a block
+    const Index blockCount = gram ? n_pixels : n_images; // Number of rows or columns the centered images are split into
 
-    MatrixXf images_mu = images.cast<float>().colwise() - mu; // Subtract means from all columns before doing SVD
+    // The previous Eigenvectors are used as the starting point if there is enough memory for the warm start and the subspace is small
+    const size_t n2 = (size_t) n*n;
+    Arena temporary;
+    Arena &workspace = arena != NULL ? *arena : temporary;
+    bool warm = gram && warmStart && U.rows() == n_pixels && U.cols() >= 2 && 2*warmSubspace(U.cols(), K, n) <= n &&
+                workspace.available(solverBytes(n, gram, K, true)) > n2 + blockLength;
 
+    // Use the largest blocks that fit in the memory budget
+    const size_t available = workspace.available(solverBytes(n, gram, K, warm));
+    const Index b = (Index) min<size_t>(min<Index>(blockSize, blockCount), available > n2 ? (available - n2) / blockLength : 0);
+    if (b == 0 || !workspace.reserve(n2 + (size_t) b*blockLength)) {
 #ifndef NDEBUG
-    cout << "Calculating the covariance matrix" << endl;
+        cout << "The memory budget of " << workspace.budget() << " bytes is too small, at least " << minimumBudget(n_pixels, n_images) << " bytes are needed" << endl;
 #endif // NDEBUG
-    if (n_pixels < n_images) {
-        if (K == -1) {
+        return -1;
+    }
+    Map<MatrixXf> C = workspace.allocate(n, n); // Gram or covariance matrix
+    Map<MatrixXf> block = gram ? workspace.allocate(b, n_images) : workspace.allocate(n_pixels, b);
+    warmIterations = 0;
+
+    mu = VectorXf::Zero(n_pixels);
+    for (Index j = 0; j < n_images; j++)
+        mu += images.col(j).cast<float>(); // The images are converted one at a time
+    mu /= n_images; // Calculate the mean along each row
+    if (!warm)
+        reportInitialComponents(images, progress); // A warm start is faster than the randomized pass
+
+    // The previous Eigenvectors are projected onto the new centered images while the Gram matrix is accumulated.
+    // This gives vectors close to the new Eigenvectors of the Gram matrix, as images_mu^T*U = V*S
+    MatrixXf X0;
+    if (warm)
+        X0.setZero(n_images, U.cols());
+
 #ifndef NDEBUG
-            cout << "Please specify the number of singular values used" << endl;
+    cout << "Calculating the " << (gram ? "Gram" : "covariance") << " matrix using blocks of " << b << (gram ? " rows" : " images") << endl;
 #endif // NDEBUG
-            assert(K != -1);
+    C.setZero();
+    for (Index i = 0; i < blockCount; i += b) {
+        const Index m = min(b, blockCount - i);
+        if (gram) {
+            centerRows(images, mu, i, block.topRows(m));
+            C.selfadjointView<Lower>().rankUpdate(block.topRows(m).transpose()); // Only the lower triangular part is accumulated
+            if (warm)
+                X0.noalias() += block.topRows(m).transpose()*U.middleRows(i, m);
+        } else {
+            centerBlock(images, mu, i, block.leftCols(m));
+            C.selfadjointView<Lower>().rankUpdate(block.leftCols(m));
         }
-        MatrixXf cov_matrix = images_mu*images_mu.transpose();
+    }
+    C.triangularView<StrictlyUpper>() = C.transpose(); // Copy the lower triangular part, so the matrix can be used in ordinary products
+    if (warm)
+        U.resize(0, 0); // The previous Eigenvectors are no longer needed
+    energy = C.trace(); // Equal to the squared norm of the centered images
+    truncatedEnergy = 0;
+
 #ifndef NDEBUG
-        cout << "cov_matrix: " << cov_matrix.rows() << " x " << cov_matrix.cols() << endl;
+    cout << "C: " << C.rows() << " x " << C.cols() << endl;
 #endif // NDEBUG
-
+    if (!gram) {
+#ifndef NDEBUG
         cout << "Calculating the SVD" << endl;
-        RedSVD::RedSVD<MatrixXf> svd(cov_matrix, K); // Calculate K largest singular values, using the JacobiSVD function with this size of covariance matrix is extremely slow, so beware!
+#endif // NDEBUG
+        RedSVD::RedSVD<MatrixXf> svd(C, K); // Calculate K largest singular values, using the JacobiSVD function with this size of covariance matrix is extremely slow, so beware!
         //cout << svd.singularValues().format(OctaveFmt) << endl;
         U = svd.matrixU();
+        S = svd.singularValues().cwiseSqrt(); // The singular values of the covariance matrix are the squared singular values of the images
     } else { // Method based on "Eigenfaces for recognition" by M. Turk and A. Pentland
-        MatrixXf cov_matrix = images_mu.transpose()*images_mu;
 #ifndef NDEBUG
-        cout << "cov_matrix: " << cov_matrix.rows() << " x " << cov_matrix.cols() << endl;
-
         cout << "Calculating the SVD" << endl;
 #endif // NDEBUG
-        //JacobiSVD<MatrixXf> svd(cov_matrix, ComputeThinV); // Calculate singular values
-        BDCSVD<MatrixXf> svd(cov_matrix, ComputeThinV); // Calculate singular values
+        MatrixXf V;
+        VectorXf D;
+        function<void(const MatrixXf &, const VectorXf &)> converged;
+        Index reported = initialComponents > 0 ? initialComponents : 1;
+        if (progress) {
+            converged = [&](const MatrixXf &found, const VectorXf &eigenvalues) {
+                if (found.cols() < 2*reported)
+                    return; // The components are only reported when their number has doubled, so all stages together cost at most as much as the final model
+#ifndef NDEBUG
+                cout << "Reporting " << found.cols() << " converged components" << endl;
+#endif // NDEBUG
+                U.resize(n_pixels, found.cols());
+                for (Index i = 0; i < n_pixels; i += b) {
+                    const Index m = min(b, n_pixels - i);
+                    centerRows(images, mu, i, block.topRows(m));
+                    U.middleRows(i, m).noalias() = block.topRows(m)*found;
+                }
+                U.colwise().normalize();
+                S = eigenvalues.cwiseSqrt();
+                progress(*this, S.asDiagonal()*found.transpose()); // The weights of the images follow from the Eigenvectors of the Gram matrix, as U^T*images_mu = S*V^T
+                reported = found.cols();
+            };
+        }
+        if (!warm || !warmEigen(C, X0, K, cumulativeEnergyThreshold*energy, V, D, warmIterations)) {
+            warmIterations = 0;
+            X0.resize(0, 0);
+            topEigen(C, K, cumulativeEnergyThreshold*energy, V, D, converged); // Only the largest Eigenvalues are calculated. The trace is used as the total energy
+        }
 
         if (K == -1) { // Calculate K based on cumulative energy instead of using hardcoded value - see: https://en.wikipedia.org/wiki/Principal_component_analysis#Compute_the_cumulative_energy_content_for_each_eigenvector
-            VectorXf S = svd.singularValues(); // Get singular values
-            //cout << S.format(OctaveFmt) << endl;
-            VectorXf cumulativeEnergy(S.size());
-            cumulativeEnergy(0) = S(0);
-            for (int i = 1; i < S.size(); i++)
-                cumulativeEnergy(i) = cumulativeEnergy(i - 1) + S(i); // Calculate the cumulative sum of the singular values
+            //cout << D.format(OctaveFmt) << endl;
+            VectorXf cumulativeEnergy(D.size());
+            cumulativeEnergy(0) = D(0);
+            for (int i = 1; i < D.size(); i++)
+                cumulativeEnergy(i) = cumulativeEnergy(i - 1) + D(i); // Calculate the cumulative sum of the Eigenvalues
             //cout << cumulativeEnergy.format(OctaveFmt) << endl;
             K = 1; // Make sure that we have at least two Eigenfaces - note that we add one to this value below
             for (; K < cumulativeEnergy.size(); K++) {
-                float energy = cumulativeEnergy(K) / cumulativeEnergy(cumulativeEnergy.size() - 1); // Convert cumulative energy into percentage
-                //cout << energy << endl;
-                if (energy >= cumulativeEnergyThreshold) {
+                float percentage = cumulativeEnergy(K) / energy; // Convert cumulative energy into percentage using the trace, as not all Eigenvalues are calculated
+                //cout << percentage << endl;
+                if (percentage >= cumulativeEnergyThreshold) {
                     K++; // Since indices start at 0 we need to add one to the K value
                     break;
                 }
@@ -105,12 +381,18 @@ int32_t PCA::compute(const MatrixXi &images, int32_t numComponents /*= -1*/) {
 
         // MatrixXf D = S.block(0, 0, n_images, K); // Extract K largest values
         // D = D*D / n_pixels; // Calculate eigenvalues
-        MatrixXf V = svd.matrixV().block(0, 0, n_images, K); // Extract K largest values
+        V.conservativeResize(NoChange, K); // Extract K largest values
+        S = D.head(K).cwiseSqrt(); // The singular values of the covariance matrix are the squared singular values of the images
 
 #ifndef NDEBUG
         cout << "V: " << V.rows() << " x " << V.cols() << " norm: " << V.norm() << endl;
 #endif // NDEBUG
-        U = images_mu*V; // Calculate the actual Eigenvectors of the true covariance matrix
+        U.resize(n_pixels, K);
+        for (Index i = 0; i < n_pixels; i += b) { // Calculate the actual Eigenvectors of the true covariance matrix a block of rows at a time
+            const Index m = min(b, n_pixels - i);
+            centerRows(images, mu, i, block.topRows(m));
+            U.middleRows(i, m).noalias() = block.topRows(m)*V;
+        }
         U.colwise().normalize(); // Normalize Eigenvectors
     }
 #ifndef NDEBUG
@@ -119,3 +401,146 @@ int32_t PCA::compute(const MatrixXi &images, int32_t numComponents /*= -1*/) {
 
     return K;
 }
+
+size_t PCA::minimumBudget(Index n_pixels, Index n_images) {
+    const bool gram = n_pixels >= n_images;
+    const Index n = gram ? n_images : n_pixels;
+    return solverBytes(n, gram, n) + sizeof(float)*((size_t) n*n + (gram ? n_images : n_pixels));
+}
+
+int32_t PCA::computeRandomized(const Ref<const MatrixXu8> &images, int32_t numComponents, MatrixXf *W /*= NULL*/) {
+    const Index n_pixels = images.rows();
+    const Index n_images = images.cols();
+    const Index maxRank = min(n_pixels, n_images - 1); // The rank of the centered images is at most n_images - 1
+
+    MatrixXf block;
+    energy = 0;
+    for (Index j = 0; j < n_images; j += blockSize) {
+        block.resize(n_pixels, min(blockSize, n_images - j));
+        centerBlock(images, mu, j, block);
+        energy += block.squaredNorm();
+    }
+    truncatedEnergy = 0;
+
+    int32_t K = numComponents;
+    Index l = K == -1 ? min<Index>(64, maxRank) : min<Index>(K + oversampling, maxRank); // Number of samples
+    mt19937 gen; // Use the same seed every time, so the result is reproducible
+    normal_distribution<float> dist;
+
+    for (;;) {
+#ifndef NDEBUG
+        cout << "Calculating the randomized SVD using " << l << " samples" << endl;
+#endif // NDEBUG
+        MatrixXf Omega(n_images, l), Q = MatrixXf::Zero(n_pixels, l), Z(n_images, l);
+        for (Index i = 0; i < Omega.size(); i++)
+            Omega.data()[i] = dist(gen); // Gaussian test matrix
+
+        for (Index j = 0; j < n_images; j += blockSize) { // Sample the range of the images
+            block.resize(n_pixels, min(blockSize, n_images - j));
+            centerBlock(images, mu, j, block);
+            Q.noalias() += block*Omega.middleRows(j, block.cols());
+        }
+        Q = orthonormalize(Q);
+
+        for (int i = 0; i <= powerIterations; i++) {
+            for (Index j = 0; j < n_images; j += blockSize) {
+                block.resize(n_pixels, min(blockSize, n_images - j));
+                centerBlock(images, mu, j, block);
+                Z.middleRows(j, block.cols()).noalias() = block.transpose()*Q;
+            }
+            if (i == powerIterations)
+                break; // Z is now the transpose of the images projected onto Q
+
+            Z = orthonormalize(Z);
+            Q.setZero();
+            for (Index j = 0; j < n_images; j += blockSize) {
+                block.resize(n_pixels, min(blockSize, n_images - j));
+                centerBlock(images, mu, j, block);
+                Q.noalias() += block*Z.middleRows(j, block.cols());
+            }
+            Q = orthonormalize(Q);
+        }
+
+        BDCSVD<MatrixXf> svd(Z, W != NULL ? ComputeThinU | ComputeThinV : ComputeThinV); // Z^T = Q^T*images_mu, so the left singular vectors of the images are Q*V
+        const VectorXf &sigma = svd.singularValues();
+
+        if (numComponents == -1) { // Calculate K based on cumulative energy using the trace as the total energy
+            float cumulativeEnergy = 0;
+            K = 0;
+            while (K < sigma.size()) {
+                cumulativeEnergy += sigma(K)*sigma(K);
+                K++;
+                if (K >= 2 && cumulativeEnergy / energy >= cumulativeEnergyThreshold) // Make sure that we have at least two Eigenfaces
+                    break;
+            }
+            if (cumulativeEnergy / energy < cumulativeEnergyThreshold && l < maxRank) {
+                l = min(2*l, maxRank); // Not enough energy captured, so sample more of the range
+                continue;
+            }
+#ifndef NDEBUG
+            cout << "Extracting " << K << " Eigenfaces. Containing " << cumulativeEnergyThreshold << " % of the energy" << endl;
+#endif // NDEBUG
+        }
+        K = min<int32_t>(K, l);
+        if (K > (int32_t)(n_images - 1)) { // Make sure that K is never equal to n_images
+            K = n_images - 1; // K can never be larger than n_images - 1
+#ifndef NDEBUG
+            cout << "K was limited to: " << K << endl;
+#endif // NDEBUG
+        }
+
+        U = Q*svd.matrixV().leftCols(K);
+        S = sigma.head(K);
+        if (W != NULL)
+            *W = S.asDiagonal()*svd.matrixU().leftCols(K).transpose(); // U^T*images_mu = V^T*Q^T*images_mu = S*U_Z^T
+        break;
+    }
+#ifndef NDEBUG
+    cout << "U: " << U.rows() << " x " << U.cols() << " norm: " << U.norm() << endl;
+#endif // NDEBUG
+
+    return K;
+}
+
+void PCA::reportInitialComponents(const Ref<const MatrixXu8> &images, const Progress &progress) {
+    if (!progress || initialComponents <= 0 || initialComponents >= images.cols() - 1)
+        return;
+    const Index l = min<Index>(initialComponents + oversampling, min(images.rows(), images.cols() - 1));
+    if (arena != NULL && arena->budget() != 0 && arena->budget() < arena->bytes() + randomizedBytes(images.rows(), images.cols(), l)) {
+#ifndef NDEBUG
+        cout << "The randomized PCA does not fit in the memory budget, so the first components are not reported" << endl;
+#endif // NDEBUG
+        return; // The memory is not stored in the arena, so it must fit next to the buffer reserved for the exact PCA
+    }
+#ifndef NDEBUG
+    cout << "Reporting " << initialComponents << " components found using a randomized PCA" << endl;
+#endif // NDEBUG
+    MatrixXf W;
+    computeRandomized(images, initialComponents, &W);
+    progress(*this, W);
+}
+
+int32_t PCA::energyComponents() const {
+    float cumulativeEnergy = 0;
+    int32_t K = 0;
+    while (K < S.size()) {
+        cumulativeEnergy += S(K)*S(K);
+        K++;
+        if (K >= 2 && cumulativeEnergy / energy >= cumulativeEnergyThreshold) // Make sure that we have at least two Eigenfaces
+            break;
+    }
+    if (K < 2 || cumulativeEnergy / energy < cumulativeEnergyThreshold)
+        return -1;
+#ifndef NDEBUG
+    cout << "Using " << K << " of " << S.size() << " components. Containing " << cumulativeEnergyThreshold << " % of the energy" << endl;
+#endif // NDEBUG
+    return K;
+}
+
+void PCA::assign(const PCA &pca, int32_t numComponents) {
+    U = pca.U.leftCols(numComponents);
+    mu = pca.mu;
+    S = pca.S.head(numComponents);
+    energy = pca.energy;
+    truncatedEnergy = pca.truncatedEnergy;
+}
@@ -18,25 +18,97 @@
 #ifndef __pca_h__
 #define __pca_h__
 
+#include <cstdint>
+#include <functional>
 #include <Eigen/Dense> // http://eigen.tuxfamily.org
 
+#include "Arena.h"
+
 using namespace Eigen;
 
+// Images are stored as 8-bit grayscale values and are only converted to float when they are used
+typedef Matrix<uint8_t, Dynamic, Dynamic> MatrixXu8;
+typedef Matrix<uint8_t, Dynamic, 1> VectorXu8;
+
 class PCA {
 public:
+    /**
+     * Called while the PCA is computed each time more components are available, so a model using them can be used before the PCA is done.
+     * The PCA contains the components found so far and W contains the weights of the images on these components.
+     */
+    typedef std::function<void(const PCA &pca, const MatrixXf &W)> Progress;
+
     /**
      * Computes the Eigenvectors of the images using PCA.
      * @param  images        Each images is represented as a column vector.
      * @param  numComponents Number of singular values used. If this is set to -1, a cumulative energy threshold of 90 % is used.
-     * @return               Returns the number of components used.
+     * @param  progress      If set, then a randomized PCA with initialComponents components is reported first. The exact PCA then
+     *                       reports the converged components each time their number has doubled. The final PCA is not reported.
+     *                       Nothing is reported if the PCA is warm started and converges.
+     * @return               Returns the number of components used or -1 if the memory budget of the arena is too small.
+     *                       The PCA is not modified in that case.
      */
-    int32_t compute(const MatrixXi &images, int32_t numComponents = -1);
+    int32_t compute(const Ref<const MatrixXu8> &images, int32_t numComponents = -1, const Progress &progress = Progress());
+
+    /**
+     * Get the smallest memory budget the exact PCA can be computed with. The images are then centered one row at a time.
+     * @param  n_pixels Number of pixels in each image.
+     * @param  n_images Number of images.
+     * @return          Returns the number of bytes.
+     */
+    static size_t minimumBudget(Index n_pixels, Index n_images);
+
+    /**
+     * Get the number of components containing the cumulative energy threshold.
+     * This allows a PCA computed with a fixed number of components to be reused.
+     * @return Returns the number of components or -1 if the components does not contain enough of the energy.
+     */
+    int32_t energyComponents() const;
+
+    // Number of subspace iterations used by the last warm start or 0 if the last PCA was computed from scratch
+    int32_t warmStartIterations() const {
+        return warmIterations;
+    }
+
+    bool randomized = false; // Use a randomized SVD of the centered images instead of forming the covariance matrix. This keeps the memory usage at O(n_pixels*numComponents)
+    Arena *arena = NULL; // Holds the temporary matrices used while training the exact PCA and projecting the images. If NULL, a temporary arena without a budget is used
+    int32_t initialComponents = 10; // Number of components reported by a cheap randomized pass when a progress callback is used. Set to 0 in order to skip it
+    bool warmStart = false; // Start the exact PCA from the Eigenvectors of the previous PCA, so retraining after a few images have changed only takes a few iterations
 
 protected:
     MatrixXf U; // Eigenvectors
     VectorXf mu; // Mean along each row
+    VectorXf S; // Singular values of the centered images corresponding to the Eigenvectors
+    float energy; // Total energy of the centered images i.e. the sum of all squared singular values
+    float truncatedEnergy = 0; // Energy discarded by incremental updates since the last call to compute
+    int32_t warmIterations = 0;
+
+    /**
+     * Copy the mean, the energy and the first components of another PCA, so the remaining components are never copied.
+     * @param pca           PCA to copy.
+     * @param numComponents Number of components copied.
+     */
+    void assign(const PCA &pca, int32_t numComponents);
 
 private:
+    /**
+     * Computes the Eigenvectors using a randomized SVD with power iterations - see: "Finding structure with randomness" by N. Halko et al.
+     * The centered images are processed in blocks of columns, so neither the covariance matrix nor the centered images are stored.
+     * @param  images        Each images is represented as a column vector.
+     * @param  numComponents Number of singular values used. If this is set to -1, the cumulative energy threshold is used.
+     * @param  W             If not NULL, then the weights of the images on the components are returned, which follow directly from the SVD.
+     * @return               Returns the number of components used.
+     */
+    int32_t computeRandomized(const Ref<const MatrixXu8> &images, int32_t numComponents, MatrixXf *W = NULL);
+
+    /**
+     * Report the first components found using a randomized PCA. The mean must have been calculated.
+     * Nothing is reported if the randomized PCA does not fit in the memory budget next to the buffer of the arena.
+     * @param images   Each images is represented as a column vector.
+     * @param progress Callback the components are reported to.
+     */
+    void reportInitialComponents(const Ref<const MatrixXu8> &images, const Progress &progress);
+
     const float cumulativeEnergyThreshold = .9f; // Determine the number of principal components required to model 90 % of data variance
 };
 
@@ -18,6 +18,9 @@
 #ifndef __tools_h__
 #define __tools_h__
 
+#include <algorithm>
+#include <cstddef>
+#include <cstdint>
 #include <numeric>
 #include <vector>
 
@@ -36,4 +39,49 @@ vector<size_t> sortIndexes(const VectorType &v) {
     return idx;
 };
 
+/**
+ * Find the indices of the k smallest values using a bounded heap, so not all values have to be sorted.
+ * @param  v       Values.
+ * @param  k       Number of values to find.
+ * @param  indices Array with room for at least k indices. The indices are sorted by increasing value.
+ * @return         Returns the number of indices found, which is the smallest of k and the number of values.
+ */
+template<typename VectorType, typename IndexType>
+size_t smallestIndexes(const VectorType &v, size_t k, IndexType *indices) {
+    k = min(k, (size_t) v.size());
+    if (k == 0)
+        return 0;
+
+    auto compare = [&v](IndexType i1, IndexType i2) { return v[i1] < v[i2]; };
+    for (size_t i = 0; i < k; i++)
+        indices[i] = i;
+    make_heap(indices, indices + k, compare); // The largest of the k smallest values is kept at the front
+    for (size_t i = k; i < (size_t) v.size(); i++) {
+        if (v[i] < v[indices[0]]) {
+            pop_heap(indices, indices + k, compare);
+            indices[k - 1] = i;
+            push_heap(indices, indices + k, compare);
+        }
+    }
+    sort_heap(indices, indices + k, compare);
+    return k;
+}
+
+/**
+ * Calculate the 64-bit FNV-1a hash of a buffer.
+ * @param  data Pointer to the data.
+ * @param  size Size of the data in bytes.
+ * @param  hash Initial value. This can be used to hash several buffers in a row.
+ * @return      Returns the hash.
+ */
+static inline uint64_t fnv1aHash(const void *data, size_t size, uint64_t hash = 0xcbf29ce484222325ULL) {
+    // See: https://en.wikipedia.org/wiki/Fowler%E2%80%93Noll%E2%80%93Vo_hash_function
+    const uint8_t *bytes = (const uint8_t *) data;
+    for (size_t i = 0; i < size; i++) {
+        hash ^= bytes[i];
+        hash *= 0x100000001b3ULL;
+    }
+    return hash;
+}
+
 #endif
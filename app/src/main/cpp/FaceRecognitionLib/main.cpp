@@ -18,12 +18,32 @@
 #include <iostream>
 #include <sys/stat.h>
 #include <algorithm>
+#include <atomic>
+#include <cerrno>
+#include <chrono>
+#include <cstdlib>
+#include <cstring>
+#include <functional>
+#include <new>
+#include <random>
+
+#ifdef _OPENMP
+#include <omp.h>
+#endif
+
+#ifdef __GLIBC__
+#include <malloc.h>
+#endif
 
 #include <Eigen/Dense> // http://eigen.tuxfamily.org
 
+#include "Cascade.h"
 #include "Eigenfaces.h"
 #include "Facebase.h"
 #include "Fisherfaces.h"
+#include "HNSW.h"
+#include "LDA.h"
+#include "PCA.h"
 #include "pgm.h"
 #include "Tools.h"
 
@@ -33,6 +53,102 @@ Fisherfaces fisherfaces;
 using namespace std;
 using namespace Eigen;
 
+static size_t allocations = 0; // Number of times operator new has been called
+
+// Count all allocations done using new, Eigen is checked separately using EIGEN_RUNTIME_NO_MALLOC
+void *operator new(size_t size) {
+    allocations++;
+    void *ptr = malloc(size);
+    if (ptr == NULL)
+        throw bad_alloc();
+    return ptr;
+}
+
+void operator delete(void *ptr) noexcept {
+    free(ptr);
+}
+
+#ifdef __GLIBC__
+// Eigen allocates its matrices using malloc instead of new, so the bytes on the heap are tracked by replacing the allocation
+// functions of glibc. The size of each block is looked up using malloc_usable_size(), so it does not have to be stored
+extern "C" {
+void *__libc_malloc(size_t size);
+void *__libc_calloc(size_t count, size_t size);
+void *__libc_realloc(void *ptr, size_t size);
+void *__libc_memalign(size_t alignment, size_t size);
+void __libc_free(void *ptr);
+}
+
+static atomic<size_t> liveBytes(0), peakBytes(0); // Bytes allocated on the heap now and at most since resetPeakHeap() was called
+
+static void *trackAllocation(void *ptr) {
+    if (ptr != NULL) {
+        const size_t live = liveBytes += malloc_usable_size(ptr);
+        size_t peak = peakBytes;
+        while (live > peak && !peakBytes.compare_exchange_weak(peak, live)) {
+        }
+    }
+    return ptr;
+}
+
+extern "C" {
+void *malloc(size_t size) noexcept {
+    return trackAllocation(__libc_malloc(size));
+}
+
+void *calloc(size_t count, size_t size) noexcept {
+    return trackAllocation(__libc_calloc(count, size));
+}
+
+void *realloc(void *ptr, size_t size) noexcept {
+    const size_t previous = ptr != NULL ? malloc_usable_size(ptr) : 0;
+    void *result = __libc_realloc(ptr, size);
+    if (result != NULL || size == 0)
+        liveBytes -= previous; // The old block is only freed if realloc succeeds
+    return trackAllocation(result);
+}
+
+void *memalign(size_t alignment, size_t size) noexcept {
+    return trackAllocation(__libc_memalign(alignment, size));
+}
+
+void *aligned_alloc(size_t alignment, size_t size) noexcept {
+    return memalign(alignment, size);
+}
+
+int posix_memalign(void **ptr, size_t alignment, size_t size) noexcept {
+    if (alignment % sizeof(void*) != 0 || (alignment & (alignment - 1)) != 0)
+        return EINVAL;
+    void *result = memalign(alignment, size);
+    if (result == NULL)
+        return ENOMEM;
+    *ptr = result;
+    return 0;
+}
+
+void free(void *ptr) noexcept {
+    if (ptr != NULL)
+        liveBytes -= malloc_usable_size(ptr);
+    __libc_free(ptr);
+}
+}
+
+static size_t liveHeap() {
+    return liveBytes;
+}
+
+static size_t peakHeap() {
+    return peakBytes;
+}
+
+// Set the peak to the bytes allocated now, which are returned
+static size_t resetPeakHeap() {
+    const size_t live = liveBytes;
+    peakBytes = live;
+    return live;
+}
+#endif // __GLIBC__
+
 // Based on: http://jmcspot.com/Eigenface
 // Images are from the AT&T Facedatabase: http://www.cl.cam.ac.uk/research/dtg/attarchive/facedatabase.html
 
@@ -83,10 +199,10 @@ static void saveMatrixAsPgm(const char *filename, const MatrixXf &A) {
     savePGMfile(filename, &img);
 }
 
-static void trainFaces(MatrixXi &images) {
+static void trainFaces(MatrixXu8 &images, VectorXi &classes) {
     cout << "Loading images" << endl;
-    images = MatrixXi(n_pixels, n_images); // Pre-allocate storage for images
-    VectorXi classes = VectorXi(n_images); // Create class vector
+    images = MatrixXu8(n_pixels, n_images); // Pre-allocate storage for images
+    classes = VectorXi(n_images); // Create class vector
     cout << "images: " << images.rows() << " x " << images.cols() << endl << endl;
 
     // Load all images into the matrix
@@ -96,11 +212,12 @@ static void trainFaces(MatrixXi &images) {
             sprintf(filename, "%s/s%u/%u.pgm", facePath, i + 1, j + 1);
             MatrixXi img = readPgmAsMatrix(filename);
             const size_t index = i*n_img_pr_person + j;
-            images.block<n_pixels, 1>(0, index) = Map<VectorXi>(img.data(), img.size()); // Flatten image
+            images.block<n_pixels, 1>(0, index) = Map<VectorXi>(img.data(), img.size()).cast<uint8_t>(); // Flatten image
             classes(index) = i + 1; // Generate class number for each person
         }
     }
 
+    //eigenfaces.randomized = true; // Use the randomized SVD instead of the covariance matrix
     eigenfaces.train(images);
     cout << "eigenfaces: " << eigenfaces.V.rows() << " x " << eigenfaces.V.cols() << endl;
 
@@ -115,6 +232,7 @@ static void trainFaces(MatrixXi &images) {
 
     cout << "Done training Eigenfaces" << endl << endl;
 
+    //fisherfaces.randomized = true; // Use the randomized SVD for the PCA step as well
     fisherfaces.train(images, classes);
     cout << "fisherfaces: " << fisherfaces.V.rows() << " x " << fisherfaces.V.cols() << endl;
 
@@ -130,11 +248,11 @@ static void trainFaces(MatrixXi &images) {
     cout << "Done training Fisherfaces" << endl << endl;
 }
 
-void calculateMatches(MatrixXi &target, const MatrixXi &images, Facebase &facebase, const char *dirName) {
+void calculateMatches(MatrixXi &target, const MatrixXu8 &images, Facebase &facebase, const char *dirName) {
     cout << "target: " << target.rows() << " x " << target.cols() << endl;
 
     cout << "Reconstructing Faces" << endl;
-    VectorXi target_flat = Map<VectorXi>(target.data(), target.size()); // Flatten image
+    VectorXu8 target_flat = Map<VectorXi>(target.data(), target.size()).cast<uint8_t>(); // Flatten image
     VectorXf W = facebase.project(target_flat); // Project onto subspace
     //cout << W.format(OctaveFmt) << endl;
     VectorXf face = facebase.reconstructFace(W);
@@ -146,25 +264,746 @@ void calculateMatches(MatrixXi &target, const MatrixXi &images, Facebase &faceba
     VectorXf dist = facebase.euclideanDist(W);
     //cout << "dist: " << dist.rows() << " x " << dist.cols() << endl;
 
-    vector<size_t> idx = sortIndexes(dist);
-    //for (auto i : idx) cout << "dist[" << i << "]: " << dist(i) << endl;
+    size_t idx[9];
+    const size_t n_matches = smallestIndexes(dist, 9, idx); // Find the first nine matches without sorting all distances
+    //for (size_t i = 0; i < n_matches; i++) cout << "dist[" << idx[i] << "]: " << dist(idx[i]) << endl;
 
     char filename[50];
     mkdir(dirName, 0755);
-    for (int i = 0; i < min(dist.size(), 9L); i++) { // Save first nine matches
+    for (size_t i = 0; i < n_matches; i++) { // Save first nine matches
         cout << "dist[" << idx[i] << "]: " << dist(idx[i]) << endl;
         sprintf(filename, "%s/match%u.pgm", dirName, i);
-        MatrixXi img = images.block<n_pixels, 1>(0, idx[i]);
+        MatrixXu8 img = images.block<n_pixels, 1>(0, idx[i]);
         //cout << "img: " << img.rows() << " x " << img.cols() << endl;
-        saveMatrixAsPgm(filename, Map<MatrixXi>(img.data(), M, N).cast<float>()); // Save matched image
+        saveMatrixAsPgm(filename, Map<MatrixXu8>(img.data(), M, N).cast<float>()); // Save matched image
     }
     sprintf(filename, "%s/face.pgm", dirName);
     saveMatrixAsPgm(filename, Map<MatrixXf>(face.data(), M, N)); // Save face image
 }
 
-int main(void) {
-    MatrixXi images;
-    trainFaces(images);
+// Exposes the PCA and LDA steps of Fisherfaces, so they can be benchmarked separately
+class FisherfacesSteps : public PCA, public LDA {
+public:
+    MatrixXf computePCA(const MatrixXu8 &images, int32_t numComponents) {
+        PCA::compute(images, numComponents);
+        return PCA::U.transpose()*(images.cast<float>().colwise() - mu); // Project images onto subspace
+    }
+
+    const MatrixXf &eigenvectors() const {
+        return LDA::U;
+    }
+};
+
+// The original LDA implementation, which inverts Sw and uses the general Eigen solver
+static MatrixXf legacyLDA(const MatrixXf &X, const VectorXi &classes, int32_t numComponents) {
+    const size_t N = X.cols();
+    const size_t dim = X.rows();
+    const int c = classes.maxCoeff();
+    VectorXf mu = X.rowwise().mean();
+
+    vector<size_t> idx = sortIndexes(classes);
+    auto iterator = idx.begin();
+    MatrixXf Sw = MatrixXf::Zero(dim, dim);
+    MatrixXf Sb = MatrixXf::Zero(dim, dim);
+    for (int i = 0; i < c; i++) {
+        int class_count = count(classes.data(), classes.data() + classes.size(), i + 1);
+        MatrixXf X_class(dim, class_count);
+        for (int j = 0; j < class_count; j++)
+            X_class.col(j) = X.col(iterator[j]);
+        advance(iterator, class_count);
+
+        VectorXf mu_class = X_class.rowwise().mean();
+        X_class = X_class.colwise() - mu_class;
+        VectorXf mu_vector = mu_class - mu;
+        Sw += X_class*X_class.transpose();
+        Sb += N*mu_vector*mu_vector.transpose();
+    }
+
+    EigenSolver<MatrixXf> es(Sw.inverse()*Sb);
+    VectorXf D = es.eigenvalues().real();
+    idx = sortIndexes(D);
+    MatrixXf V = es.eigenvectors().real();
+    MatrixXf U(dim, numComponents);
+    for (int32_t i = 0; i < numComponents; i++)
+        U.col(i) = V.col(idx[(idx.size() - 1) - i]);
+    return U;
+}
+
+static void benchmarkLDA(const MatrixXu8 &images, const VectorXi &classes) {
+    const int iterations = 10;
+    const int c = classes.maxCoeff();
+    FisherfacesSteps steps;
+    MatrixXf X = steps.computePCA(images, images.cols() - c); // Use the same PCA subspace as Fisherfaces
+    cout << "Benchmarking LDA on X: " << X.rows() << " x " << X.cols() << " with " << c << " classes" << endl;
+
+    MatrixXf U_legacy;
+    auto start = chrono::steady_clock::now();
+    for (int i = 0; i < iterations; i++)
+        U_legacy = legacyLDA(X, classes, c - 1);
+    const double legacyTime = chrono::duration<double, milli>(chrono::steady_clock::now() - start).count() / iterations;
+
+    start = chrono::steady_clock::now();
+    for (int i = 0; i < iterations; i++)
+        steps.LDA::compute(X, classes, c - 1);
+    const double time = chrono::duration<double, milli>(chrono::steady_clock::now() - start).count() / iterations;
+
+    // Compare the subspaces, as the Eigenvectors are only unique up to a scaling
+    HouseholderQR<MatrixXf> qr_legacy(U_legacy), qr(steps.eigenvectors());
+    const MatrixXf Q_legacy = qr_legacy.householderQ()*MatrixXf::Identity(U_legacy.rows(), U_legacy.cols());
+    const MatrixXf Q = qr.householderQ()*MatrixXf::Identity(U_legacy.rows(), U_legacy.cols());
+    const float difference = (Q_legacy - Q*(Q.transpose()*Q_legacy)).norm() / Q_legacy.norm();
+
+    cout << "Legacy LDA: " << legacyTime << " ms" << endl;
+    cout << "LDA: " << time << " ms" << endl;
+    cout << "Speedup: " << legacyTime / time << "x, relative subspace difference: " << difference << endl;
+}
+
+static void benchmarkThreads(const MatrixXu8 &images, const VectorXi &classes) {
+#ifdef _OPENMP
+    const int maxThreads = omp_get_num_procs();
+#else
+    const int maxThreads = 1;
+    cout << "Compiled without OpenMP, so only a single thread is used" << endl;
+#endif
+    const int iterations = 100;
+    const VectorXu8 target = images.col(0);
+    double trainTime1 = 0, projectTime1 = 0;
+
+    for (int threads = 1; threads <= maxThreads; threads++) {
+        setNbThreads(threads);
+
+        auto start = chrono::steady_clock::now();
+        eigenfaces.train(images);
+        fisherfaces.train(images, classes);
+        const double trainTime = chrono::duration<double, milli>(chrono::steady_clock::now() - start).count();
+
+        start = chrono::steady_clock::now();
+        for (int i = 0; i < iterations; i++)
+            eigenfaces.project(target);
+        const double projectTime = chrono::duration<double, milli>(chrono::steady_clock::now() - start).count() / iterations;
+
+        if (threads == 1) {
+            trainTime1 = trainTime;
+            projectTime1 = projectTime;
+        }
+        cout << threads << " threads: training " << trainTime << " ms (" << trainTime1 / trainTime << "x), projection "
+             << projectTime << " ms (" << projectTime1 / projectTime << "x)" << endl;
+    }
+}
+
+static bool testAllocations(const MatrixXu8 &images, const VectorXi &classes) {
+    const int iterations = 100;
+    const size_t k = 5;
+    const VectorXu8 target = images.col(0);
+    Facebase *facebases[] = { &eigenfaces, &fisherfaces };
+    bool success = true;
+
+    // Each search path of nearest() is checked separately, as they use different buffers. The index path searches the scratch buffers of HNSW
+    struct SearchPath {
+        const char *name;
+        bool quantized, earlyAbandon;
+        size_t ef;
+    };
+    const SearchPath paths[] = { { "full", false, false, 0 }, { "quantized", true, false, 0 }, { "partial", false, true, 0 }, { "index", false, false, 64 } };
+
+    // The index is normally only built for large galleries
+    const size_t minIndexedImages = eigenfaces.minIndexedImages;
+    eigenfaces.minIndexedImages = fisherfaces.minIndexedImages = 0;
+    eigenfaces.train(images);
+    fisherfaces.train(images, classes);
+
+    // Count the allocations done using new, while Eigen asserts if it allocates any memory
+    auto countAllocations = [&](const function<void()> &search) {
+        search(); // Make sure that the thread pool has been created and the buffers have been resized
+        const size_t start = allocations;
+#ifdef EIGEN_RUNTIME_NO_MALLOC
+        internal::set_is_malloc_allowed(false);
+#endif
+        for (int i = 0; i < iterations; i++)
+            search();
+#ifdef EIGEN_RUNTIME_NO_MALLOC
+        internal::set_is_malloc_allowed(true);
+#endif
+        return allocations - start;
+    };
+
+    for (Facebase *facebase : facebases) {
+        const size_t count = countAllocations([&]() { facebase->recognize(target); });
+
+        // The result must be the same as when using the allocating functions
+        const Facebase::Workspace &result = facebase->recognize(target);
+        const VectorXf W = facebase->project(target);
+        const float error = (result.W - W).norm() / W.norm() + (result.dist - facebase->euclideanDist(W)).norm() / result.dist.norm() +
+                            abs(result.faceDist - facebase->euclideanDistFace(target, facebase->reconstructFace(W))) / result.faceDist;
+
+        cout << "Allocations during " << iterations << " recognitions: " << count << ", relative error: " << error << endl;
+        success = success && count == 0 && error < 1e-3f;
+
+        for (const SearchPath &path : paths) {
+            facebase->setQuantized(path.quantized);
+            facebase->earlyAbandon = path.earlyAbandon;
+            int32_t indices[k];
+            float dist[k], faceDist;
+            const size_t searchCount = countAllocations([&]() { facebase->nearest(target, k, indices, dist, faceDist, numeric_limits<float>::infinity(), path.ef); });
+            cout << "Allocations during " << iterations << " " << path.name << " searches: " << searchCount << endl;
+            success = success && searchCount == 0 && indices[0] == 0; // The target is the first image
+        }
+        facebase->setQuantized(false);
+        facebase->earlyAbandon = false;
+    }
+    eigenfaces.minIndexedImages = fisherfaces.minIndexedImages = minIndexedImages;
+    cout << (success ? "Recognition does not allocate any memory" : "Allocation test failed") << endl;
+    return success;
+}
+
+// There are not enough images in the database, so a large gallery is simulated by adding noise to the weights of the images
+static MatrixXf simulateGallery(const MatrixXf &W, Index n_gallery, mt19937 &gen) {
+    normal_distribution<float> noise(0, 0.1f*sqrt(W.squaredNorm() / W.size()));
+    MatrixXf gallery(W.rows(), n_gallery);
+    for (Index i = 0; i < gallery.cols(); i++)
+        gallery.col(i) = W.col(i % W.cols()) + VectorXf::NullaryExpr(W.rows(), [&]() { return noise(gen); });
+    return gallery;
+}
+
+// Allows the weights to be set directly, so a large gallery can be simulated
+class SyntheticGallery : public Eigenfaces {
+public:
+    void setWeights(const MatrixXf &W) {
+        W_all = W;
+        allocateWorkspace();
+    }
+};
+
+static void benchmarkHNSW(const MatrixXu8 &images) {
+    const int n_gallery = 20000, n_queries = 1000;
+    const size_t efs[] = { 16, 32, 64, 128 };
+
+    eigenfaces.train(images);
+    const MatrixXf W = eigenfaces.project(images);
+    mt19937 gen(0);
+    normal_distribution<float> noise(0, 0.1f*sqrt(W.squaredNorm() / W.size()));
+    const MatrixXf gallery = simulateGallery(W, n_gallery, gen);
+    MatrixXf queries(W.rows(), n_queries);
+    for (Index i = 0; i < queries.cols(); i++)
+        queries.col(i) = gallery.col(gen() % n_gallery) + VectorXf::NullaryExpr(W.rows(), [&]() { return noise(gen); });
+
+    auto start = chrono::steady_clock::now();
+    HNSW index;
+    index.build(gallery);
+    const double buildTime = chrono::duration<double, milli>(chrono::steady_clock::now() - start).count();
+    cout << "Built index over " << n_gallery << " points in " << buildTime << " ms" << endl;
+
+    // Exact nearest neighbours found by comparing with all points
+    const RowVectorXf gallery_norm2 = gallery.colwise().squaredNorm();
+    VectorXi exact(n_queries);
+    VectorXf dist(n_gallery);
+    start = chrono::steady_clock::now();
+    for (Index i = 0; i < n_queries; i++) {
+        dist.noalias() = gallery.transpose()*queries.col(i);
+        dist = gallery_norm2.transpose() - 2*dist;
+        dist.minCoeff(&exact(i));
+    }
+    const double exactTime = chrono::duration<double, micro>(chrono::steady_clock::now() - start).count() / n_queries;
+    cout << "Exact: " << exactTime << " us" << endl;
+
+    for (size_t ef : efs) {
+        int32_t index_i;
+        float dist2;
+        int correct = 0;
+        start = chrono::steady_clock::now();
+        for (Index i = 0; i < n_queries; i++) {
+            if (index.search(queries.col(i), 1, ef, &index_i, &dist2) > 0 && index_i == exact(i))
+                correct++;
+        }
+        const double time = chrono::duration<double, micro>(chrono::steady_clock::now() - start).count() / n_queries;
+        cout << "ef = " << ef << ": recall@1 " << (float) correct / n_queries << ", " << time << " us (" << exactTime / time << "x)" << endl;
+    }
+}
+
+static void benchmarkQuantized(const MatrixXu8 &images) {
+    const int n_gallery = 50000, n_queries = 200;
+
+    SyntheticGallery facebase;
+    facebase.train(images);
+    mt19937 gen(0);
+    facebase.setWeights(simulateGallery(facebase.project(images), n_gallery, gen));
+
+    // The queries are noisy versions of the images
+    normal_distribution<float> noise(0, 10);
+    MatrixXu8 queries(images.rows(), n_queries);
+    for (Index i = 0; i < queries.cols(); i++) {
+        queries.col(i) = (images.col(gen() % images.cols()).cast<float>() + VectorXf::NullaryExpr(images.rows(), [&]() { return noise(gen); }))
+                         .array().round().max(0.0f).min(255.0f).matrix().cast<uint8_t>();
+    }
+
+    VectorXi exact(n_queries), approx(n_queries);
+    VectorXf exactDist(n_queries), approxDist(n_queries);
+    float faceDist;
+    auto start = chrono::steady_clock::now();
+    for (Index i = 0; i < n_queries; i++)
+        facebase.nearest(queries.col(i), 1, &exact(i), &exactDist(i), faceDist);
+    const double exactTime = chrono::duration<double, micro>(chrono::steady_clock::now() - start).count() / n_queries;
+
+    facebase.setQuantized(true);
+    facebase.nearest(queries.col(0), 1, &approx(0), &approxDist(0), faceDist); // Make sure that the workspace has been allocated
+    start = chrono::steady_clock::now();
+    for (Index i = 0; i < n_queries; i++)
+        facebase.nearest(queries.col(i), 1, &approx(i), &approxDist(i), faceDist);
+    const double quantizedTime = chrono::duration<double, micro>(chrono::steady_clock::now() - start).count() / n_queries;
+
+    const int agree = (exact.array() == approx.array()).count();
+    cout << "Gallery of " << n_gallery << " images, " << facebase.numComponents << " components" << endl;
+    cout << "Exact: " << exactTime << " us, quantized: " << quantizedTime << " us (" << exactTime / quantizedTime << "x)" << endl;
+    cout << "Top-1 agreement: " << (float) agree / n_queries << ", max distance difference: " << (approxDist - exactDist).cwiseAbs().maxCoeff() << endl;
+}
+
+static void comparePartialDist(Facebase &facebase, const MatrixXu8 &queries) {
+    const Index n_queries = queries.cols();
+    VectorXi exact(n_queries), partial(n_queries);
+    VectorXf exactDist(n_queries), partialDist(n_queries);
+    float faceDist;
+
+    facebase.earlyAbandon = false;
+    auto start = chrono::steady_clock::now();
+    for (Index i = 0; i < n_queries; i++)
+        facebase.nearest(queries.col(i), 1, &exact(i), &exactDist(i), faceDist);
+    const double exactTime = chrono::duration<double, micro>(chrono::steady_clock::now() - start).count() / n_queries;
+
+    facebase.earlyAbandon = true;
+    facebase.resetPartialDistStats();
+    start = chrono::steady_clock::now();
+    for (Index i = 0; i < n_queries; i++)
+        facebase.nearest(queries.col(i), 1, &partial(i), &partialDist(i), faceDist);
+    const double partialTime = chrono::duration<double, micro>(chrono::steady_clock::now() - start).count() / n_queries;
+    facebase.earlyAbandon = false;
+
+    const float components = facebase.partialDistStats().averageComponents();
+    cout << facebase.numImages() << " images: " << components << " of " << facebase.numComponents << " components touched on average ("
+         << 100.0f * components / facebase.numComponents << "%)" << endl;
+    cout << "Exact: " << exactTime << " us, partial: " << partialTime << " us (" << exactTime / partialTime << "x), top-1 agreement: "
+         << (float) (exact.array() == partial.array()).count() / n_queries << endl;
+}
+
+static void benchmarkPartialDist(const MatrixXu8 &images, const VectorXi &classes) {
+    const int n_gallery = 50000, n_queries = 200;
+    mt19937 gen(0);
+
+    // The queries are noisy versions of the images
+    normal_distribution<float> noise(0, 10);
+    MatrixXu8 queries(images.rows(), n_queries);
+    for (Index i = 0; i < queries.cols(); i++) {
+        queries.col(i) = (images.col(gen() % images.cols()).cast<float>() + VectorXf::NullaryExpr(images.rows(), [&]() { return noise(gen); }))
+                         .array().round().max(0.0f).min(255.0f).matrix().cast<uint8_t>();
+    }
+
+    cout << "Eigenfaces" << endl;
+    eigenfaces.train(images);
+    comparePartialDist(eigenfaces, queries);
+
+    cout << endl << "Fisherfaces" << endl;
+    fisherfaces.train(images, classes);
+    comparePartialDist(fisherfaces, queries);
+
+    cout << endl << "Simulated gallery" << endl;
+    SyntheticGallery facebase;
+    facebase.train(images);
+    facebase.setWeights(simulateGallery(facebase.project(images), n_gallery, gen));
+    comparePartialDist(facebase, queries);
+}
+
+static void benchmarkCascade(const MatrixXu8 &images, const VectorXi &classes) {
+    const int n_queries = 200;
+    const size_t shortlistSizes[] = { 5, 10, 20, 40 };
+    mt19937 gen(0);
+
+    // The queries are noisy versions of the images
+    normal_distribution<float> noise(0, 10);
+    MatrixXu8 queries(images.rows(), n_queries);
+    for (Index i = 0; i < queries.cols(); i++) {
+        queries.col(i) = (images.col(gen() % images.cols()).cast<float>() + VectorXf::NullaryExpr(images.rows(), [&]() { return noise(gen); }))
+                         .array().round().max(0.0f).min(255.0f).matrix().cast<uint8_t>();
+    }
+
+    Facebase *facebases[] = { &eigenfaces, &fisherfaces };
+    const char *names[] = { "Eigenfaces", "Fisherfaces" };
+    eigenfaces.train(images);
+    fisherfaces.train(images, classes);
+
+    Cascade cascade;
+    auto start = chrono::steady_clock::now();
+    cascade.train(images, M, N); // The images are stored column by column, so the rows are treated as the width
+    const double trainTime = chrono::duration<double, milli>(chrono::steady_clock::now() - start).count();
+    cout << "Trained " << cascade.coarseWidth << "x" << cascade.coarseHeight << " model with " << cascade.coarse.numComponents
+         << " components in " << trainTime << " ms" << endl;
+
+    for (int f = 0; f < 2; f++) {
+        Facebase &facebase = *facebases[f];
+        VectorXi exact(n_queries), approx(n_queries);
+        float dist, faceDist;
+
+        start = chrono::steady_clock::now();
+        for (Index i = 0; i < n_queries; i++)
+            facebase.nearest(queries.col(i), 1, &exact(i), &dist, faceDist);
+        const double exactTime = chrono::duration<double, micro>(chrono::steady_clock::now() - start).count() / n_queries;
+        cout << endl << names[f] << ": " << exactTime << " us" << endl;
+
+        for (size_t shortlistSize : shortlistSizes) {
+            cascade.shortlistSize = shortlistSize;
+            double coarseTime = 0, fineTime = 0;
+            for (Index i = 0; i < n_queries; i++) {
+                cascade.nearest(facebase, queries.col(i), 1, &approx(i), &dist, faceDist);
+                coarseTime += cascade.timing.coarse*1000;
+                fineTime += cascade.timing.fine*1000;
+            }
+            coarseTime /= n_queries;
+            fineTime /= n_queries;
+            cout << "Shortlist " << shortlistSize << ": coarse " << coarseTime << " us, fine " << fineTime << " us ("
+                 << exactTime / (coarseTime + fineTime) << "x), top-1 agreement: " << (float) (exact.array() == approx.array()).count() / n_queries << endl;
+        }
+    }
+}
+
+// Train the cascade on a gallery with more images than the coarse model has pixels and check that the images themselves are found
+static bool testLargeCascade(const MatrixXu8 &images) {
+    const Index n_gallery = 2048;
+    const int n_queries = 50;
+    mt19937 gen(0);
+
+    // The gallery consists of noisy versions of the images
+    normal_distribution<float> noise(0, 10);
+    MatrixXu8 gallery(images.rows(), n_gallery);
+    for (Index i = 0; i < n_gallery; i++) {
+        gallery.col(i) = (images.col(i % images.cols()).cast<float>() + VectorXf::NullaryExpr(images.rows(), [&]() { return noise(gen); }))
+                         .array().round().max(0.0f).min(255.0f).matrix().cast<uint8_t>();
+    }
+
+    Eigenfaces fine;
+    Cascade cascade;
+    if (!fine.train(gallery) || !cascade.train(gallery, M, N) || !cascade.valid(fine)) {
+        cout << "Training the cascade on " << n_gallery << " images failed" << endl;
+        return false;
+    }
+    cout << "Trained " << cascade.coarseWidth << "x" << cascade.coarseHeight << " model on " << n_gallery << " images with "
+         << cascade.coarse.numComponents << " components" << endl;
+
+    int found = 0;
+    for (int i = 0; i < n_queries; i++) {
+        const Index j = gen() % n_gallery;
+        int32_t index;
+        float dist, faceDist;
+        cascade.nearest(fine, gallery.col(j), 1, &index, &dist, faceDist);
+        found += index == j;
+    }
+    cout << "Found " << found << " of " << n_queries << " gallery images" << endl;
+    return found == n_queries;
+}
+
+static void benchmarkClassMatching(const MatrixXu8 &images, const VectorXi &classes) {
+    const int n_queries = 400;
+    mt19937 gen(0);
+
+    // The queries are noisy versions of the images, so the correct class is known
+    normal_distribution<float> noise(0, 20);
+    MatrixXu8 queries(images.rows(), n_queries);
+    VectorXi queryClasses(n_queries);
+    for (Index i = 0; i < queries.cols(); i++) {
+        const Index j = gen() % images.cols();
+        queries.col(i) = (images.col(j).cast<float>() + VectorXf::NullaryExpr(images.rows(), [&]() { return noise(gen); }))
+                         .array().round().max(0.0f).min(255.0f).matrix().cast<uint8_t>();
+        queryClasses(i) = classes(j);
+    }
+
+    fisherfaces.train(images, classes);
+    float dist, faceDist;
+    int32_t index;
+    int correct = 0;
+    auto start = chrono::steady_clock::now();
+    for (Index i = 0; i < n_queries; i++) {
+        fisherfaces.nearest(queries.col(i), 1, &index, &dist, faceDist);
+        correct += fisherfaces.classes(index) == queryClasses(i);
+    }
+    double time = chrono::duration<double, micro>(chrono::steady_clock::now() - start).count() / n_queries;
+    cout << "All " << fisherfaces.numImages() << " images: " << time << " us, accuracy: " << (float) correct / n_queries << endl;
+
+    const size_t prototypes[] = { 0, 1, 3 };
+    for (size_t p : prototypes) {
+        fisherfaces.setClassMatching(true, p);
+        for (int recheck = 0; recheck < 2; recheck++) {
+            correct = 0;
+            start = chrono::steady_clock::now();
+            for (Index i = 0; i < n_queries; i++)
+                correct += fisherfaces.nearestClass(queries.col(i), dist, index, faceDist, numeric_limits<float>::infinity(), recheck) == queryClasses(i);
+            time = chrono::duration<double, micro>(chrono::steady_clock::now() - start).count() / n_queries;
+            cout << "Centroids with " << p << " prototypes per class" << (recheck ? " and recheck" : "") << ": " << time
+                 << " us, accuracy: " << (float) correct / n_queries << endl;
+        }
+    }
+    fisherfaces.setClassMatching(false);
+}
+
+static void benchmarkSharedPCA(const MatrixXu8 &images, const VectorXi &classes) {
+    auto start = chrono::steady_clock::now();
+    fisherfaces.train(images, classes);
+    eigenfaces.train(images);
+    const double separateTime = chrono::duration<double, milli>(chrono::steady_clock::now() - start).count();
+    const int32_t separateComponents = eigenfaces.numComponents;
+
+    start = chrono::steady_clock::now();
+    fisherfaces.train(images, classes);
+    const bool shared = eigenfaces.train(images, fisherfaces);
+    const double sharedTime = chrono::duration<double, milli>(chrono::steady_clock::now() - start).count();
+
+    cout << "Separate training: " << separateTime << " ms, " << separateComponents << " Eigenfaces" << endl;
+    if (shared)
+        cout << "Shared PCA: " << sharedTime << " ms (" << separateTime / sharedTime << "x), " << eigenfaces.numComponents << " Eigenfaces" << endl;
+    else
+        cout << "The PCA computed by Fisherfaces does not contain enough energy" << endl;
+}
+
+template<typename T>
+static void compareCompact(const char *name, const T &model, const MatrixXu8 &queries) {
+    T single = model, halfModel = model; // The copies are compacted, as the trained model is still needed for updates
+    single.compact();
+    halfModel.compact(true);
+    cout << name << ": " << model.modelBytes() << " bytes, " << single.modelBytes() << " bytes without training data, "
+         << halfModel.modelBytes() << " bytes in half precision" << endl;
+
+    float dist, halfDist, faceDist, maxError = 0;
+    int32_t index, halfIndex;
+    int matched = 0;
+    double time = 0, halfTime = 0;
+    for (Index i = 0; i < queries.cols(); i++) {
+        auto start = chrono::steady_clock::now();
+        single.nearest(queries.col(i), 1, &index, &dist, faceDist);
+        time += chrono::duration<double, micro>(chrono::steady_clock::now() - start).count();
+
+        start = chrono::steady_clock::now();
+        halfModel.nearest(queries.col(i), 1, &halfIndex, &halfDist, faceDist);
+        halfTime += chrono::duration<double, micro>(chrono::steady_clock::now() - start).count();
+
+        matched += index == halfIndex;
+        if (dist > 0)
+            maxError = max(maxError, abs(halfDist - dist) / dist);
+    }
+    cout << "Single precision: " << time / queries.cols() << " us, half precision: " << halfTime / queries.cols() << " us, same nearest image: "
+         << (float) matched / queries.cols() << ", max relative distance error: " << maxError << endl;
+}
+
+static void benchmarkCompact(const MatrixXu8 &images, const VectorXi &classes) {
+    const int n_queries = 400;
+    mt19937 gen(0);
+
+    normal_distribution<float> noise(0, 20);
+    MatrixXu8 queries(images.rows(), n_queries);
+    for (Index i = 0; i < queries.cols(); i++) {
+        const Index j = gen() % images.cols();
+        queries.col(i) = (images.col(j).cast<float>() + VectorXf::NullaryExpr(images.rows(), [&]() { return noise(gen); }))
+                         .array().round().max(0.0f).min(255.0f).matrix().cast<uint8_t>();
+    }
+
+    fisherfaces.train(images, classes);
+    if (!eigenfaces.train(images, fisherfaces))
+        eigenfaces.train(images);
+    compareCompact("Eigenfaces", eigenfaces, queries);
+    compareCompact("Fisherfaces", fisherfaces, queries);
+}
+
+static void benchmarkProgressive(const MatrixXu8 &images, const VectorXi &classes) {
+    const int n_queries = 400;
+    mt19937 gen(0);
+
+    // The queries are noisy versions of the images, so the correct class is known
+    normal_distribution<float> noise(0, 20);
+    MatrixXu8 queries(images.rows(), n_queries);
+    VectorXi queryClasses(n_queries);
+    for (Index i = 0; i < queries.cols(); i++) {
+        const Index j = gen() % images.cols();
+        queries.col(i) = (images.col(j).cast<float>() + VectorXf::NullaryExpr(images.rows(), [&]() { return noise(gen); }))
+                         .array().round().max(0.0f).min(255.0f).matrix().cast<uint8_t>();
+        queryClasses(i) = classes(j);
+    }
+    auto accuracy = [&](Facebase &facebase) {
+        float dist, faceDist;
+        int32_t index;
+        int correct = 0;
+        for (Index i = 0; i < n_queries; i++) {
+            facebase.nearest(queries.col(i), 1, &index, &dist, faceDist);
+            correct += classes(index) == queryClasses(i);
+        }
+        return (float) correct / n_queries;
+    };
+
+    auto start = chrono::steady_clock::now();
+    eigenfaces.train(images);
+    double time = chrono::duration<double, milli>(chrono::steady_clock::now() - start).count();
+    cout << "Training: " << time << " ms, " << eigenfaces.numComponents << " Eigenfaces, accuracy: " << accuracy(eigenfaces) << endl;
+
+    Eigenfaces stage;
+    chrono::steady_clock::duration paused(0); // Time spent measuring the accuracy of the stages
+    start = chrono::steady_clock::now();
+    eigenfaces.train(images, [&](const PCA &pca, const MatrixXf &W) {
+        const auto now = chrono::steady_clock::now();
+        stage.train(images, pca, W);
+        const double stageTime = chrono::duration<double, milli>(chrono::steady_clock::now() - paused - start).count();
+        cout << "Stage: " << stageTime << " ms, " << stage.numComponents << " Eigenfaces, accuracy: " << accuracy(stage) << endl;
+        paused += chrono::steady_clock::now() - now;
+    });
+    time = chrono::duration<double, milli>(chrono::steady_clock::now() - paused - start).count();
+    cout << "Progressive training: " << time << " ms, " << eigenfaces.numComponents << " Eigenfaces, accuracy: " << accuracy(eigenfaces) << endl;
+}
+
+// Replace part of the gallery and compare retraining from scratch with retraining started from the previous Eigenfaces
+static void benchmarkWarmStart(const MatrixXu8 &images) {
+    const Index n_gallery = images.cols() / 2;
+    const float fractions[] = { .01f, .1f, .5f };
+
+    Eigenfaces previous;
+    previous.train(images.leftCols(n_gallery));
+    for (float fraction : fractions) {
+        const Index changed = max<Index>(1, (Index) round(fraction*n_gallery));
+        const auto gallery = images.middleCols(changed, n_gallery); // The oldest images are replaced by new images
+
+        Eigenfaces cold;
+        auto start = chrono::steady_clock::now();
+        cold.train(gallery);
+        const double coldTime = chrono::duration<double, milli>(chrono::steady_clock::now() - start).count();
+
+        Eigenfaces warm = previous;
+        warm.warmStart = true;
+        start = chrono::steady_clock::now();
+        warm.train(gallery);
+        const double warmTime = chrono::duration<double, milli>(chrono::steady_clock::now() - start).count();
+
+        // The distances from the first image to all images do not depend on the sign of the Eigenvectors
+        const VectorXf reference = cold.euclideanDist(cold.W_all.col(0));
+        const float error = (warm.euclideanDist(warm.W_all.col(0)) - reference).norm() / reference.norm();
+        cout << "Changed: " << changed << " of " << n_gallery << " images, cold: " << coldTime << " ms, " << cold.numComponents << " Eigenfaces, warm: "
+             << warmTime << " ms (" << coldTime / warmTime << "x), " << warm.numComponents << " Eigenfaces, ";
+        if (warm.warmStartIterations() > 0)
+            cout << warm.warmStartIterations() << " iterations, ";
+        else
+            cout << "fell back to a cold start, ";
+        cout << "relative error: " << error << endl;
+    }
+}
+
+// Train using several memory budgets and check that the arena never exceeds the budget and that the models are unchanged
+static bool testMemoryBudget(const MatrixXu8 &images, const VectorXi &classes) {
+    const size_t minimum = PCA::minimumBudget(images.rows(), images.cols());
+    const size_t budgets[] = { 0, 64 << 20, 16 << 20, 2*minimum, minimum };
+    Facebase *facebases[] = { &eigenfaces, &fisherfaces };
+    bool success = true;
+
+    // The distances from the first image to all images do not depend on the sign of the Eigenvectors
+    eigenfaces.arena = fisherfaces.arena = NULL;
+    eigenfaces.train(images);
+    fisherfaces.train(images, classes);
+    const VectorXf reference[] = { eigenfaces.euclideanDist(eigenfaces.W_all.col(0)), fisherfaces.euclideanDist(fisherfaces.W_all.col(0)) };
+    cout << "Previous peak: " << 2*sizeof(float)*images.size() << " bytes, as the images were converted and centered at once" << endl;
+
+    for (size_t budget : budgets) {
+        Arena arena(budget);
+#ifdef __GLIBC__
+        // The PCA is computed on its own as well using the energy threshold of Eigenfaces and the number of components of Fisherfaces,
+        // as the budget bounds the memory used by the PCA. The arena and the temporaries of the solvers must fit in the budget,
+        // so the peak of the heap may only exceed it by the components and the mean kept by the PCA
+        const int32_t components[] = { -1, (int32_t) (images.cols() - classes.maxCoeff()) };
+        for (int32_t numComponents : components) {
+            PCA pca;
+            pca.arena = &arena;
+            const size_t arenaBytes = arena.bytes(), before = resetPeakHeap();
+            const bool computed = pca.compute(images, numComponents) != -1;
+            const size_t output = liveHeap() - before - (arena.bytes() - arenaBytes);
+            const size_t used = peakHeap() - before + arenaBytes - output; // The arena allocated beforehand is part of the budget as well
+            const bool withinBudget = budget == 0 || used <= budget;
+            cout << "Budget: " << budget << " bytes, PCA with " << numComponents << " components used " << used << " bytes and kept " << output << " bytes" << endl;
+            success = success && computed && withinBudget;
+        }
+#else
+        cout << "The heap can only be tracked using glibc, so only the arena is checked" << endl;
+#endif // __GLIBC__
+
+        eigenfaces.arena = fisherfaces.arena = &arena;
+        auto start = chrono::steady_clock::now();
+        const bool trained = eigenfaces.train(images) && fisherfaces.train(images, classes);
+        const double time = chrono::duration<double, milli>(chrono::steady_clock::now() - start).count();
+
+        float error = 0;
+        for (int i = 0; i < 2 && trained; i++)
+            error = max(error, (facebases[i]->euclideanDist(facebases[i]->W_all.col(0)) - reference[i]).norm() / reference[i].norm());
+        const bool respected = budget == 0 || arena.peakBytes() <= budget;
+        cout << "Budget: " << budget << " bytes, arena peak: " << arena.peakBytes() << " bytes, training: " << time << " ms, relative error: " << error << endl;
+        success = success && trained && respected && error < 1e-3f;
+    }
+
+    // A budget that can not hold the Gram matrix must fail without modifying the model
+    Arena arena(minimum - 1);
+    eigenfaces.arena = &arena;
+    const int32_t numComponents = eigenfaces.numComponents;
+    const bool rejected = !eigenfaces.train(images) && eigenfaces.numComponents == numComponents && arena.peakBytes() == 0;
+    cout << "Budget: " << minimum - 1 << " bytes is " << (rejected ? "rejected" : "not rejected") << endl;
+    success = success && rejected;
+
+    eigenfaces.arena = fisherfaces.arena = NULL;
+    cout << (success ? "Training respects the memory budget" : "Memory budget test failed") << endl;
+    return success;
+}
+
+int main(int argc, char *argv[]) {
+    MatrixXu8 images;
+    VectorXi classes;
+    trainFaces(images, classes);
+
+    if (argc > 1 && strcmp(argv[1], "lda") == 0) { // Run using: ./main lda
+        benchmarkLDA(images, classes);
+        return 0;
+    }
+    if (argc > 1 && strcmp(argv[1], "threads") == 0) { // Run using: ./main threads
+        benchmarkThreads(images, classes);
+        return 0;
+    }
+    if (argc > 1 && strcmp(argv[1], "alloc") == 0) // Run using: ./main alloc
+        return testAllocations(images, classes) ? 0 : 1;
+    if (argc > 1 && strcmp(argv[1], "budget") == 0) // Run using: ./main budget
+        return testMemoryBudget(images, classes) ? 0 : 1;
+    if (argc > 1 && strcmp(argv[1], "hnsw") == 0) { // Run using: ./main hnsw
+        benchmarkHNSW(images);
+        return 0;
+    }
+    if (argc > 1 && strcmp(argv[1], "quant") == 0) { // Run using: ./main quant
+        benchmarkQuantized(images);
+        return 0;
+    }
+    if (argc > 1 && strcmp(argv[1], "partial") == 0) { // Run using: ./main partial
+        benchmarkPartialDist(images, classes);
+        return 0;
+    }
+    if (argc > 1 && strcmp(argv[1], "cascade") == 0) { // Run using: ./main cascade
+        benchmarkCascade(images, classes);
+        return 0;
+    }
+    if (argc > 1 && strcmp(argv[1], "cascadelarge") == 0) // Run using: ./main cascadelarge
+        return testLargeCascade(images) ? 0 : 1;
+    if (argc > 1 && strcmp(argv[1], "class") == 0) { // Run using: ./main class
+        benchmarkClassMatching(images, classes);
+        return 0;
+    }
+    if (argc > 1 && strcmp(argv[1], "shared") == 0) { // Run using: ./main shared
+        benchmarkSharedPCA(images, classes);
+        return 0;
+    }
+    if (argc > 1 && strcmp(argv[1], "anytime") == 0) { // Run using: ./main anytime
+        benchmarkProgressive(images, classes);
+        return 0;
+    }
+    if (argc > 1 && strcmp(argv[1], "compact") == 0) { // Run using: ./main compact
+        benchmarkCompact(images, classes);
+        return 0;
+    }
+    if (argc > 1 && strcmp(argv[1], "warm") == 0) { // Run using: ./main warm
+        benchmarkWarmStart(images);
+        return 0;
+    }
 
     MatrixXi target = readPgmAsMatrix("../orl_faces/s3/8.pgm"); // Load a random image from the database
     //MatrixXi target = readPgmAsMatrix("img/bart.pgm"); // Used to test face distance
@@ -184,7 +1023,8 @@ int main(void) {
             char filename[50];
             sprintf(filename, "%s/s%u/%u.pgm", facePath, i + 1, j + 1);
             target = readPgmAsMatrix(filename);
-            VectorXf W = eigenfaces.project(Map<VectorXi>(target.data(), target.size())); // Flatten image and project onto Eigenfaces
+            VectorXu8 target_flat = Map<VectorXi>(target.data(), target.size()).cast<uint8_t>(); // Flatten image
+            VectorXf W = eigenfaces.project(target_flat); // Project onto Eigenfaces
             VectorXf dist = eigenfaces.euclideanDist(W);
             vector<size_t> idx = sortIndexes(dist);
             //cout << "dist[" << idx[0] << "]: " << dist(idx[0]) << endl;
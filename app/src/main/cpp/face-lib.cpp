@@ -16,15 +16,27 @@
  * e-mail   :  lauszus@gmail.com
  ******************************************************************************/
 
+#include <atomic>
+#include <chrono>
+#include <cmath>
+#include <memory>
+#include <mutex>
+#include <string>
+
 #include <jni.h>
 #include <Eigen/Dense> // http://eigen.tuxfamily.org
 #include <opencv2/core.hpp>
 #include <opencv2/core/eigen.hpp>
+#include <FaceRecognitionLib/Cascade.h>
 #include <FaceRecognitionLib/Eigenfaces.h>
 #include <FaceRecognitionLib/Fisherfaces.h>
 #include <FaceRecognitionLib/Tools.h>
 #include <android/log.h>
 
+#ifdef _OPENMP
+#include <omp.h>
+#endif
+
 #ifdef NDEBUG
 #define LOGD(...) ((void)0)
 #define LOGI(...) ((void)0)
@@ -38,40 +50,342 @@
 #define LOG_ASSERT(condition, ...) if (!(condition)) __android_log_assert(#condition, LOG_TAG, __VA_ARGS__)
 #endif
 
-Eigenfaces eigenfaces;
-Fisherfaces fisherfaces;
-
 using namespace std;
 using namespace cv;
 using namespace Eigen;
 
+// A recognition engine owns its models, workspaces and gallery, so several engines can be used independently.
+// Engines are created by CreateEngine and referenced from Java by the returned handle
+struct FaceEngine {
+    // Training, updates and settings are applied to these models, which are never used for recognition. All writers hold writeMutex
+    Eigenfaces eigenfacesModel;
+    Fisherfaces fisherfacesModel;
+    Cascade cascadeModel; // Low resolution model used to find a shortlist for the full resolution models
+    Arena arena; // Temporary matrices used while training. The models are trained one at a time, so they share the arena
+    mutex writeMutex;
+    mutex readMutex;
+
+    // Recognition uses copies of the models, which are published using an atomic pointer swap when the models change (RCU).
+    // A reader keeps using the copy it loaded until it is done, so recognition never waits for training.
+    // The copies are never modified by the writers, but the readers share the workspace, the visited set of the index and the counters
+    // of a copy, so the recognition calls hold readMutex. Training never takes it, so recognition still never waits for training
+    shared_ptr<Eigenfaces> eigenfaces = make_shared<Eigenfaces>();
+    shared_ptr<Fisherfaces> fisherfaces = make_shared<Fisherfaces>();
+    shared_ptr<Cascade> cascade = make_shared<Cascade>();
+    atomic<bool> useEigenfaces{true}; // Model used for recognition. Both models are trained together, so this can be changed without retraining
+    atomic<bool> cascadeEnabled{false};
+    atomic<bool> classRecheck{false}; // Compare with the images of the nearest class when matching classes
+    atomic<bool> halfPrecision{false}; // Store the eigenvectors of the published copies in half precision
+    atomic<bool> progressive{false}; // Publish Eigenfaces using the components found while training
+    atomic<bool> training{false}; // Set while the models are trained progressively
+    atomic<bool> incremental{true}; // Keep the data needed to update Fisherfaces incrementally in the writer model
+
+    FaceEngine() {
+        eigenfacesModel.arena = fisherfacesModel.arena = cascadeModel.coarse.arena = &arena;
+    }
+
+    void publishEigenfaces() {
+        const size_t bytes = publish(&eigenfaces, eigenfacesModel);
+        LOGI("Eigenfaces: %zu bytes, %zu bytes used for recognition", eigenfacesModel.modelBytes(), bytes);
+    }
+
+    void publishFisherfaces() {
+        const size_t bytes = publish(&fisherfaces, fisherfacesModel);
+        LOGI("Fisherfaces: %zu bytes, %zu bytes used for recognition", fisherfacesModel.modelBytes(), bytes);
+    }
+
+    void publishCascade() {
+        publish(&cascade, cascadeModel);
+    }
+
+    // Stop using the coarse model until it has been trained on the same images as the published models
+    void unpublishCascade() {
+        atomic_store(&cascade, make_shared<Cascade>());
+    }
+
+    // Get the published model used for recognition
+    shared_ptr<Facebase> acquireFacebase() const {
+        if (!useEigenfaces) {
+            shared_ptr<Fisherfaces> pFisherfaces = atomic_load(&fisherfaces);
+            if (pFisherfaces->isTrained() || !training)
+                return pFisherfaces;
+            // Fisherfaces need the complete PCA, so the Eigenfaces published while training are used until the first Fisherfaces are trained
+        }
+        return atomic_load(&eigenfaces);
+    }
+
+    shared_ptr<Cascade> acquireCascade() const {
+        return atomic_load(&cascade);
+    }
+
+private:
+    // Replace the published copy. The previous copy is freed when the last reader releases it.
+    // Only what recognition needs is copied, so the data only needed for training is never duplicated
+    template<typename T>
+    size_t publish(shared_ptr<T> *published, const T &model) {
+        shared_ptr<T> copy = make_shared<T>();
+        copy->assignCompact(model, halfPrecision);
+        atomic_store(published, copy);
+        return copy->modelBytes();
+    }
+};
+
+static FaceEngine *getEngine(jlong handle) {
+    LOG_ASSERT(handle != 0, "Engine has not been created");
+    return (FaceEngine *) handle;
+}
+
+// Wrap the images without copying them. Each image is stored as a row of the Mat, which is a column in Eigen's column-major order
+static Map<const MatrixXu8> mapImages(const Mat *pImages) {
+    LOG_ASSERT(pImages->type() == CV_8U && pImages->isContinuous(), "Images must be a continuous 8-bit matrix");
+    return Map<const MatrixXu8>(pImages->ptr<uint8_t>(), pImages->cols, pImages->rows);
+}
+
+// The images are resized to squares before they are stored
+static size_t imageSide(size_t n_pixels) {
+    const size_t side = (size_t) lround(sqrt((double) n_pixels));
+    LOG_ASSERT(side*side == n_pixels, "Images must be square");
+    return side;
+}
+
+// The coarse model of the cascade is stored next to the full resolution model
+static string coarsePath(const char *path) {
+    return string(path) + ".coarse";
+}
+
+static void saveModel(JNIEnv *env, jstring modelPath, FaceEngine *engine, Facebase *pFacebase, uint64_t hash) {
+    const char *path = env->GetStringUTFChars(modelPath, NULL);
+    if (!pFacebase->save(path, hash))
+        LOGE("Failed to save model: %s", path);
+    if (engine->cascadeEnabled && engine->cascadeModel.valid(*pFacebase) && !engine->cascadeModel.save(coarsePath(path).c_str(), hash))
+        LOGE("Failed to save coarse model: %s", path);
+    env->ReleaseStringUTFChars(modelPath, path);
+}
+
+// Call TrainFacesTask.onStage(), so the stage is reported to the UI thread
+static void reportStage(JNIEnv *env, jobject task, jint numComponents, jfloat time) {
+    jclass cls = env->GetObjectClass(task);
+    jmethodID onStage = env->GetMethodID(cls, "onStage", "(IF)V");
+    LOG_ASSERT(onStage != NULL, "TrainFacesTask.onStage(int, float) was not found");
+    env->CallVoidMethod(task, onStage, numComponents, time);
+    env->DeleteLocalRef(cls);
+}
+
 #ifdef __cplusplus
 extern "C" {
 #endif
 
-JNIEXPORT void JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_TrainFaces(JNIEnv, jobject, jlong addrImages, jlong addrClasses) {
-    Mat *pImages = (Mat *) addrImages; // Each images is represented as a column vector
+static uint64_t hashTrainingData(const Mat *pImages, const Mat *pClasses) {
+    LOG_ASSERT(pImages->isContinuous(), "Images must be continuous");
+    uint64_t hash = fnv1aHash(pImages->data, pImages->total()*pImages->elemSize());
+    if (pClasses != NULL) {
+        LOG_ASSERT(pClasses->isContinuous(), "Classes must be continuous");
+        hash = fnv1aHash(pClasses->data, pClasses->total()*pClasses->elemSize(), hash);
+    }
+    return hash;
+}
+
+JNIEXPORT jlong JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_CreateEngine(JNIEnv *, jobject) {
+    return (jlong) new FaceEngine();
+}
+
+JNIEXPORT void JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_DestroyEngine(JNIEnv *, jobject, jlong handle) {
+    delete getEngine(handle);
+}
+
+JNIEXPORT void JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_SetUseEigenfaces(JNIEnv *, jobject, jlong handle, jboolean useEigenfaces) {
+    getEngine(handle)->useEigenfaces = useEigenfaces;
+    LOGI("Using %s", useEigenfaces ? "Eigenfaces" : "Fisherfaces");
+}
+
+JNIEXPORT void JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_SetNumThreads(JNIEnv *, jobject, jint numThreads) {
+    if (numThreads <= 0) { // Use all cores
+#ifdef _OPENMP
+        numThreads = omp_get_num_procs();
+#else
+        numThreads = 1;
+#endif
+    }
+    Eigen::setNbThreads(numThreads); // This is used by both Eigen and the parallel loops in the library
+    LOGI("Using %d threads", Eigen::nbThreads());
+}
+
+JNIEXPORT void JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_SetQuantized(JNIEnv *, jobject, jlong handle, jboolean quantized) {
+    FaceEngine *engine = getEngine(handle);
+    lock_guard<mutex> lock(engine->writeMutex);
+    engine->eigenfacesModel.setQuantized(quantized);
+    engine->fisherfacesModel.setQuantized(quantized);
+    engine->publishEigenfaces();
+    engine->publishFisherfaces();
+    LOGI("Quantized weights: %s", quantized ? "enabled" : "disabled");
+}
+
+JNIEXPORT void JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_SetEarlyAbandon(JNIEnv *, jobject, jlong handle, jboolean earlyAbandon) {
+    FaceEngine *engine = getEngine(handle);
+    lock_guard<mutex> lock(engine->writeMutex);
+    engine->eigenfacesModel.earlyAbandon = engine->fisherfacesModel.earlyAbandon = earlyAbandon;
+    engine->eigenfacesModel.resetPartialDistStats();
+    engine->fisherfacesModel.resetPartialDistStats();
+    engine->publishEigenfaces();
+    engine->publishFisherfaces();
+    LOGI("Partial distance search: %s", earlyAbandon ? "enabled" : "disabled");
+}
+
+static void logPartialDistStats(const Facebase &facebase) {
+    if (!facebase.earlyAbandon)
+        return;
+    const Facebase::PartialDistStats &stats = facebase.partialDistStats();
+    LOGI("Partial distance search: %.1f of %d components touched on average over %llu searches",
+         stats.averageComponents(), facebase.numComponents, (unsigned long long) stats.searches);
+}
+
+JNIEXPORT void JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_SetCascade(JNIEnv *, jobject, jlong handle, jint shortlistSize) {
+    FaceEngine *engine = getEngine(handle);
+    lock_guard<mutex> lock(engine->writeMutex);
+    if (shortlistSize > 0) {
+        engine->cascadeModel.shortlistSize = (size_t) shortlistSize;
+        engine->publishCascade();
+    }
+    engine->cascadeEnabled = shortlistSize > 0;
+    LOGI("Cascade: %s, shortlist size: %zu", engine->cascadeEnabled ? "enabled" : "disabled", engine->cascadeModel.shortlistSize);
+}
+
+JNIEXPORT void JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_SetClassMatching(JNIEnv *, jobject, jlong handle, jboolean enabled, jint prototypesPerClass, jboolean recheck) {
+    FaceEngine *engine = getEngine(handle);
+    lock_guard<mutex> lock(engine->writeMutex);
+    engine->eigenfacesModel.setClassMatching(enabled, (size_t) max(prototypesPerClass, 0));
+    engine->fisherfacesModel.setClassMatching(enabled, (size_t) max(prototypesPerClass, 0));
+    engine->publishEigenfaces();
+    engine->publishFisherfaces();
+    engine->classRecheck = recheck;
+    LOGI("Class matching: %s, prototypes per class: %d, recheck: %d", enabled ? "enabled" : "disabled", prototypesPerClass, recheck);
+}
+
+JNIEXPORT void JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_SetHalfPrecision(JNIEnv *, jobject, jlong handle, jboolean enabled) {
+    FaceEngine *engine = getEngine(handle);
+    lock_guard<mutex> lock(engine->writeMutex);
+    engine->halfPrecision = enabled;
+    engine->publishCascade();
+    engine->publishEigenfaces();
+    engine->publishFisherfaces();
+    LOGI("Half precision: %s", enabled ? "enabled" : "disabled");
+}
+
+JNIEXPORT void JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_SetMemoryBudget(JNIEnv *, jobject, jlong handle, jlong bytes) {
+    FaceEngine *engine = getEngine(handle);
+    lock_guard<mutex> lock(engine->writeMutex);
+    engine->arena.setBudget((size_t) max<jlong>(bytes, 0));
+    LOGI("Memory budget: %zu bytes", engine->arena.budget());
+}
+
+JNIEXPORT void JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_SetProgressive(JNIEnv *, jobject, jlong handle, jboolean enabled, jint initialComponents) {
+    FaceEngine *engine = getEngine(handle);
+    lock_guard<mutex> lock(engine->writeMutex);
+    engine->progressive = enabled;
+    engine->eigenfacesModel.initialComponents = engine->fisherfacesModel.initialComponents = max(initialComponents, 0);
+    LOGI("Progressive training: %s, initial components: %d", enabled ? "enabled" : "disabled", engine->eigenfacesModel.initialComponents);
+}
+
+JNIEXPORT void JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_SetIncrementalUpdates(JNIEnv *, jobject, jlong handle, jboolean enabled) {
+    FaceEngine *engine = getEngine(handle);
+    lock_guard<mutex> lock(engine->writeMutex);
+    engine->incremental = enabled;
+    if (!enabled)
+        engine->fisherfacesModel.releaseUpdateData();
+    LOGI("Incremental updates: %s, Fisherfaces: %zu bytes", enabled ? "enabled" : "disabled", engine->fisherfacesModel.modelBytes());
+}
+
+JNIEXPORT void JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_SetWarmStart(JNIEnv *, jobject, jlong handle, jboolean enabled) {
+    FaceEngine *engine = getEngine(handle);
+    lock_guard<mutex> lock(engine->writeMutex);
+    engine->eigenfacesModel.warmStart = engine->fisherfacesModel.warmStart = enabled; // The writer models keep their Eigenvectors, so the next training starts from them
+    LOGI("Warm start: %s", enabled ? "enabled" : "disabled");
+}
+
+JNIEXPORT jboolean JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_TrainFaces(JNIEnv *env, jobject, jlong handle, jlong addrImages, jlong addrClasses, jstring modelPath, jstring eigenfacesModelPath, jobject task) {
+    FaceEngine *engine = getEngine(handle);
+    Mat *pImages = (Mat *) addrImages; // Each images is represented as a row vector
     Mat *pClasses = (Mat *) addrClasses; // Classes are represented as a vector
 
-    LOG_ASSERT(pImages->type() == CV_8U, "Images must be an 8-bit matrix");
-    MatrixXi images;
-    cv2eigen(*pImages, images); // Copy from OpenCV Mat to Eigen matrix
+    const Map<const MatrixXu8> images = mapImages(pImages);
+
+    // Recognition keeps using the published models while the models are trained
+    lock_guard<mutex> lock(engine->writeMutex);
+    const bool randomized = images.rows() < images.cols(); // Large galleries would otherwise form the n_pixels x n_pixels covariance matrix
+    Facebase *pFacebase;
+    bool eigenfacesTrained = true;
+
+    // When training progressively, Eigenfaces are published each time more components are found, so recognition can start before training is done
+    const auto start = chrono::steady_clock::now();
+    int stages = 0;
+    const PCA::Progress progress = [&](const PCA &pca, const MatrixXf &W) {
+        engine->eigenfacesModel.train(images, pca, W);
+        if (stages++ == 0)
+            engine->unpublishCascade(); // The coarse model is trained on the new images after the full resolution models
+        engine->publishEigenfaces();
+        const float time = chrono::duration<float, milli>(chrono::steady_clock::now() - start).count();
+        LOGI("Stage %d: published %d Eigenfaces after %f ms", stages, engine->eigenfacesModel.numComponents, time);
+        reportStage(env, task, engine->eigenfacesModel.numComponents, time);
+    };
+    const bool progressive = engine->progressive && task != NULL;
+    const PCA::Progress &stage = progressive ? progress : PCA::Progress();
+    engine->training = progressive;
 
-    //Facebase *pFacebase;
     if (pClasses == NULL) { // If classes are NULL, then train Eigenfaces
-        eigenfaces.train(images); // Train Eigenfaces
-        LOGI("Eigenfacess numComponents: %d", eigenfaces.numComponents);
-        //pFacebase = &eigenfaces;
+        engine->eigenfacesModel.randomized = randomized;
+        if (!engine->eigenfacesModel.train(images, stage)) { // Train Eigenfaces
+            LOGE("The memory budget of %zu bytes is too small to train Eigenfaces", engine->arena.budget());
+            engine->training = false;
+            return JNI_FALSE;
+        }
+        LOGI("Eigenfacess numComponents: %d", engine->eigenfacesModel.numComponents);
+        if (engine->eigenfacesModel.warmStartIterations() > 0)
+            LOGI("Warm start converged in %d iterations", engine->eigenfacesModel.warmStartIterations());
+        pFacebase = &engine->eigenfacesModel;
     } else {
         LOG_ASSERT(pClasses->type() == CV_32S && pClasses->cols == 1, "Classes must be a signed 32-bit vector");
         VectorXi classes;
         cv2eigen(*pClasses, classes); // Copy from OpenCV Mat to Eigen vector
         LOG_ASSERT(classes.minCoeff() == 1, "Minimum value in the list must be 1");
-        fisherfaces.train(images, classes); // Train Fisherfaces
-        LOGI("Fisherfaces numComponents: %d", fisherfaces.numComponents);
-        //pFacebase = &fisherfaces;
+        engine->fisherfacesModel.randomized = randomized;
+        if (!engine->fisherfacesModel.train(images, classes, stage)) { // Train Fisherfaces. The PCA components found meanwhile are published as Eigenfaces
+            LOGE("The memory budget of %zu bytes is too small to train Fisherfaces", engine->arena.budget());
+            engine->training = false;
+            return JNI_FALSE;
+        }
+        LOGI("Fisherfaces numComponents: %d", engine->fisherfacesModel.numComponents);
+        pFacebase = &engine->fisherfacesModel;
+
+        // Eigenfaces are obtained from the PCA already computed by Fisherfaces, so the user can switch algorithm without retraining
+        engine->eigenfacesModel.randomized = randomized;
+        if (!engine->eigenfacesModel.train(images, engine->fisherfacesModel)) {
+            LOGI("Shared PCA does not contain enough energy, so Eigenfaces are trained separately");
+            eigenfacesTrained = engine->eigenfacesModel.train(images);
+            if (!eigenfacesTrained)
+                LOGE("The memory budget of %zu bytes is too small to train Eigenfaces", engine->arena.budget()); // Fisherfaces can still be used
+        }
+        if (eigenfacesTrained)
+            LOGI("Eigenfacess numComponents: %d", engine->eigenfacesModel.numComponents);
+        if (!engine->incremental)
+            engine->fisherfacesModel.releaseUpdateData(); // Only needed by UpdateFaces, so Fisherfaces are retrained instead
     }
 
+    if (engine->cascadeEnabled) { // Train the low resolution model on the same images
+        const size_t side = imageSide(images.rows());
+        if (engine->cascadeModel.train(images, side, side)) {
+            LOGI("Coarse Eigenfaces numComponents: %d", engine->cascadeModel.coarse.numComponents);
+            engine->publishCascade();
+        } else
+            LOGE("The memory budget of %zu bytes is too small to train the coarse model", engine->arena.budget()); // The cascade is not used, as it does not match the full resolution model
+    }
+    if (engine->arena.budget() == 0)
+        engine->arena.release(); // Without a budget the arena is only kept while training
+    if (eigenfacesTrained)
+        engine->publishEigenfaces();
+    if (pClasses != NULL)
+        engine->publishFisherfaces();
+    engine->training = false;
+
     /*
     if (!pFacebase->V.hasNaN()) {
         for (int i = 0; i < pFacebase->numComponents; i++) { // Loop through eigenvectors
@@ -81,45 +395,233 @@ JNIEXPORT void JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_TrainFa
     } else
         LOGE("Eigenvectors are not valid!");
     */
+
+    if (modelPath != NULL) // Store the model, so it does not have to be retrained at next startup
+        saveModel(env, modelPath, engine, pFacebase, hashTrainingData(pImages, pClasses));
+    if (pClasses != NULL && eigenfacesTrained && eigenfacesModelPath != NULL)
+        saveModel(env, eigenfacesModelPath, engine, &engine->eigenfacesModel, hashTrainingData(pImages, NULL));
+    return JNI_TRUE;
 }
 
-JNIEXPORT void JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_MeasureDist(JNIEnv *env, jobject, jlong addrImage, jfloatArray minDist, jintArray minDistIndex, jfloatArray faceDist, jboolean useEigenfaces) {
+JNIEXPORT jboolean JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_UpdateFaces(JNIEnv *env, jobject, jlong handle, jlong addrImages, jlong addrClasses, jint numRemoved, jstring modelPath) {
+    FaceEngine *engine = getEngine(handle);
+    Mat *pImages = (Mat *) addrImages; // Each images is represented as a row vector, the last row is the new image
+    Mat *pClasses = (Mat *) addrClasses; // Classes are represented as a vector
+
+    const Map<const MatrixXu8> images = mapImages(pImages);
+    const Ref<const VectorXu8> image = images.col(images.cols() - 1); // The new image
+
+    lock_guard<mutex> lock(engine->writeMutex);
+    const bool cascaded = engine->cascadeEnabled && engine->cascadeModel.valid(pClasses == NULL ? (Facebase &) engine->eigenfacesModel : (Facebase &) engine->fisherfacesModel);
     Facebase *pFacebase;
-    if (useEigenfaces) {
-        LOGI("Using Eigenfaces");
-        pFacebase = &eigenfaces;
+    if (pClasses == NULL) { // If classes are NULL, then update Eigenfaces
+        if (numRemoved != 0 || !engine->eigenfacesModel.V.any() || images.cols() != engine->eigenfacesModel.numImages() + 1 || !engine->eigenfacesModel.update(image)) {
+            LOGI("Eigenfaces need to be retrained");
+            return JNI_FALSE;
+        }
+        LOGI("Eigenfaces updated incrementally");
+        pFacebase = &engine->eigenfacesModel;
     } else {
-        LOGI("Using Fisherfaces");
-        pFacebase = &fisherfaces;
+        LOG_ASSERT(pClasses->type() == CV_32S && pClasses->cols == 1, "Classes must be a signed 32-bit vector");
+        VectorXi classes;
+        cv2eigen(*pClasses, classes); // Copy from OpenCV Mat to Eigen vector
+
+        // The classes of the remaining images must be unchanged, as the scatter matrices are stored per class
+        const int n_kept = engine->fisherfacesModel.numImages() - numRemoved;
+        if (!engine->fisherfacesModel.V.any() || engine->fisherfacesModel.classes.size() != engine->fisherfacesModel.numImages() || n_kept < 1 || images.cols() != n_kept + 1 || classes.size() != n_kept + 1 ||
+            engine->fisherfacesModel.classes.tail(n_kept) != classes.head(n_kept) || !engine->fisherfacesModel.update(image, classes(n_kept), numRemoved)) {
+            LOGI("Fisherfaces need to be retrained");
+            return JNI_FALSE;
+        }
+        LOGI("Fisherfaces updated incrementally");
+        pFacebase = &engine->fisherfacesModel;
+    }
+    if (cascaded) {
+        engine->cascadeModel.add(image, numRemoved); // Keep the coarse model in sync with the images
+        engine->publishCascade();
     }
+    if (pClasses == NULL)
+        engine->publishEigenfaces();
+    else
+        engine->publishFisherfaces();
+
+    if (modelPath != NULL)
+        saveModel(env, modelPath, engine, pFacebase, hashTrainingData(pImages, pClasses));
+    return JNI_TRUE;
+}
 
-    if (pFacebase->V.any()) { // Make sure that the eigenvector has been calculated
-        Mat *pImage = (Mat *) addrImage; // Image is represented as a column vector
+JNIEXPORT jint JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_EnrollFace(JNIEnv *env, jobject, jlong handle, jlong addrImages, jlong addrClasses, jint numRemoved, jfloat maxDrift, jstring modelPath) {
+    FaceEngine *engine = getEngine(handle);
+    Mat *pImages = (Mat *) addrImages; // Each images is represented as a row vector, the last row is the new image
+    Mat *pClasses = (Mat *) addrClasses; // Classes are represented as a vector
+
+    const Map<const MatrixXu8> images = mapImages(pImages);
+    lock_guard<mutex> lock(engine->writeMutex);
+    Facebase *pFacebase;
+    if (pClasses == NULL)
+        pFacebase = &engine->eigenfacesModel;
+    else
+        pFacebase = &engine->fisherfacesModel;
+
+    const int n_kept = pFacebase->numImages() - numRemoved;
+    if (!pFacebase->V.any() || n_kept < 1 || images.cols() != n_kept + 1) {
+        LOGI("Face can not be enrolled");
+        return -1;
+    }
 
-        VectorXi image;
-        cv2eigen(*pImage, image); // Convert from OpenCV Mat to Eigen matrix
+    int32_t label = 0;
+    if (pClasses != NULL) {
+        LOG_ASSERT(pClasses->type() == CV_32S && pClasses->cols == 1, "Classes must be a signed 32-bit vector");
+        VectorXi classes;
+        cv2eigen(*pClasses, classes); // Copy from OpenCV Mat to Eigen vector
+        if (pFacebase->classes.size() != pFacebase->numImages() || classes.size() != n_kept + 1 || pFacebase->classes.tail(n_kept) != classes.head(n_kept)) {
+            LOGI("Classes have changed, so the face can not be enrolled");
+            return -1;
+        }
+        label = classes(n_kept);
+    }
 
-        LOGI("Project faces");
-        VectorXf W = pFacebase->project(image); // Project onto subspace
-        LOGI("Reconstructing faces");
-        VectorXf face = pFacebase->reconstructFace(W);
+    const Ref<const VectorXu8> image = images.col(images.cols() - 1); // The new image
+    const bool cascaded = engine->cascadeEnabled && engine->cascadeModel.valid(*pFacebase);
+    pFacebase->maxDrift = maxDrift;
+    const bool retrain = pFacebase->enroll(image, label, numRemoved);
+    if (cascaded) {
+        engine->cascadeModel.add(image, numRemoved); // Keep the coarse model in sync with the images
+        engine->publishCascade();
+    }
+    if (pClasses == NULL)
+        engine->publishEigenfaces();
+    else
+        engine->publishFisherfaces();
+    LOGI("Enrolled face, drift: %f", pFacebase->drift());
+
+    if (modelPath != NULL)
+        saveModel(env, modelPath, engine, pFacebase, hashTrainingData(pImages, pClasses));
+    return retrain ? 1 : 0;
+}
 
-        LOGI("Calculate normalized Euclidean distance");
-        jfloat dist_face = pFacebase->euclideanDistFace(image, face);
-        LOGI("Face distance: %f", dist_face);
-        env->SetFloatArrayRegion(faceDist, 0, 1, &dist_face);
+JNIEXPORT jboolean JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_LoadModel(JNIEnv *env, jobject, jlong handle, jstring modelPath, jlong addrImages, jlong addrClasses) {
+    FaceEngine *engine = getEngine(handle);
+    Mat *pImages = (Mat *) addrImages; // Each images is represented as a row vector
+    Mat *pClasses = (Mat *) addrClasses; // Classes are represented as a vector
+
+    lock_guard<mutex> lock(engine->writeMutex);
+    Facebase *pFacebase;
+    if (pClasses == NULL)
+        pFacebase = &engine->eigenfacesModel;
+    else
+        pFacebase = &engine->fisherfacesModel;
+
+    const char *path = env->GetStringUTFChars(modelPath, NULL);
+    const uint64_t hash = hashTrainingData(pImages, pClasses);
+    bool loaded = pFacebase->load(path, hash); // The model is only used if it was trained on exactly the same data
+    LOGI("Loading model %s: %s", path, loaded ? "success" : "failed");
+    if (loaded && pClasses != NULL) { // The classes are not stored in the model, but they are the same as the model was trained on
+        LOG_ASSERT(pClasses->type() == CV_32S && pClasses->cols == 1, "Classes must be a signed 32-bit vector");
+        cv2eigen(*pClasses, pFacebase->classes);
+        pFacebase->updateClassRepresentatives();
+    }
+    if (loaded && engine->cascadeEnabled) {
+        const size_t side = imageSide(pImages->cols);
+        const bool coarseLoaded = engine->cascadeModel.load(coarsePath(path).c_str(), hash, side, side) && engine->cascadeModel.valid(*pFacebase);
+        LOGI("Loading coarse model: %s", coarseLoaded ? "success" : "failed");
+        engine->publishCascade();
+    }
+    if (loaded) {
+        if (pClasses == NULL)
+            engine->publishEigenfaces();
+        else
+            engine->publishFisherfaces();
+    }
+    env->ReleaseStringUTFChars(modelPath, path);
+    return (jboolean) loaded;
+}
+
+JNIEXPORT void JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_MeasureDist(JNIEnv *env, jobject, jlong handle, jlong addrImage, jfloatArray minDist, jintArray minDistIndex, jintArray minDistLabel, jfloatArray faceDist, jfloat faceThreshold, jint ef) {
+    FaceEngine *engine = getEngine(handle);
+    lock_guard<mutex> lock(engine->readMutex); // The recognition tasks might run on different executors
+    LOGI("Using %s", engine->useEigenfaces ? "Eigenfaces" : "Fisherfaces");
+    const shared_ptr<Facebase> pFacebase = engine->acquireFacebase(); // Keeps the model alive even if a new model is published meanwhile
+    const shared_ptr<Cascade> pCascade = engine->acquireCascade();
 
-        VectorXf dist = pFacebase->euclideanDist(W);
+    if (pFacebase->isTrained()) { // Make sure that the eigenvector has been calculated
+        Mat *pImage = (Mat *) addrImage; // Image is represented as a column vector
 
-        vector<size_t> sortedIdx = sortIndexes(dist);
-        for (auto idx : sortedIdx)
-            LOGI("dist[%zu]: %f", idx, dist(idx));
+        LOG_ASSERT(pImage->type() == CV_8U && pImage->isContinuous(), "Image must be a continuous 8-bit matrix");
+        const Map<const VectorXu8> image(pImage->ptr<uint8_t>(), pImage->total()); // Use the image without copying it
+
+        LOGI("Recognize face");
+        int32_t minIndex, label = 0;
+        jfloat min_dist, dist_face;
+        size_t n;
+        if (pFacebase->isClassMatching() && pFacebase->classes.size() == pFacebase->numImages()) { // Compare with the classes instead of all images
+            label = pFacebase->nearestClass(image, min_dist, minIndex, dist_face, faceThreshold, engine->classRecheck);
+            n = label > 0 ? 1 : 0;
+        } else if (engine->cascadeEnabled && pCascade->valid(*pFacebase)) {
+            n = pCascade->nearest(*pFacebase, image, 1, &minIndex, &min_dist, dist_face, faceThreshold);
+            LOGI("Cascade: coarse %f ms, fine %f ms", pCascade->timing.coarse, pCascade->timing.fine);
+        } else
+            n = pFacebase->nearest(image, 1, &minIndex, &min_dist, dist_face, faceThreshold, (size_t) max(ef, 0)); // Uses the index if it has been built
 
-        int minIndex = (int) sortedIdx[0];
-        env->SetFloatArrayRegion(minDist, 0, 1, &dist(minIndex));
+        LOGI("Face distance: %f", dist_face);
+        env->SetFloatArrayRegion(faceDist, 0, 1, &dist_face);
+        if (n == 0) {
+            LOGI("Image is not a face, so it is not compared with the images");
+            min_dist = numeric_limits<float>::infinity();
+            env->SetFloatArrayRegion(minDist, 0, 1, &min_dist);
+            return;
+        }
+
+        if (label == 0 && pFacebase->classes.size() == pFacebase->numImages())
+            label = pFacebase->classes(minIndex);
+        LOGI("dist[%d]: %f, label: %d", minIndex, min_dist, label);
+        logPartialDistStats(*pFacebase);
+        env->SetFloatArrayRegion(minDist, 0, 1, &min_dist);
         env->SetIntArrayRegion(minDistIndex, 0, 1, &minIndex);
+        env->SetIntArrayRegion(minDistLabel, 0, 1, &label);
     }
 }
+
+JNIEXPORT jint JNICALL Java_com_lauszus_facerecognitionapp_NativeMethods_NearestFaces(JNIEnv *env, jobject, jlong handle, jlong addrImage, jintArray indices, jfloatArray distances, jintArray labels, jfloatArray faceDist, jfloat faceThreshold, jint ef) {
+    FaceEngine *engine = getEngine(handle);
+    lock_guard<mutex> lock(engine->readMutex);
+    const shared_ptr<Facebase> pFacebase = engine->acquireFacebase(); // Keeps the model alive even if a new model is published meanwhile
+    const shared_ptr<Cascade> pCascade = engine->acquireCascade();
+    if (!pFacebase->isTrained()) // Make sure that the eigenvector has been calculated
+        return 0;
+
+    Mat *pImage = (Mat *) addrImage; // Image is represented as a column vector
+    LOG_ASSERT(pImage->type() == CV_8U && pImage->isContinuous(), "Image must be a continuous 8-bit matrix");
+    const Map<const VectorXu8> image(pImage->ptr<uint8_t>(), pImage->total()); // Use the image without copying it
+
+    const size_t k = min(env->GetArrayLength(indices), min(env->GetArrayLength(distances), env->GetArrayLength(labels)));
+    const bool hasClasses = pFacebase->classes.size() == pFacebase->numImages();
+    jint *pIndices = env->GetIntArrayElements(indices, NULL);
+    jfloat *pDistances = env->GetFloatArrayElements(distances, NULL);
+    jint *pLabels = env->GetIntArrayElements(labels, NULL);
+
+    jfloat dist_face;
+    jint n;
+    if (engine->cascadeEnabled && pCascade->valid(*pFacebase)) {
+        n = (jint) pCascade->nearest(*pFacebase, image, k, pIndices, pDistances, dist_face, faceThreshold);
+        LOGI("Cascade: coarse %f ms, fine %f ms", pCascade->timing.coarse, pCascade->timing.fine);
+    } else
+        n = (jint) pFacebase->nearest(image, k, pIndices, pDistances, dist_face, faceThreshold, (size_t) max(ef, 0)); // Uses the index if it has been built
+    env->SetFloatArrayRegion(faceDist, 0, 1, &dist_face);
+    if (n == 0)
+        LOGI("Image is not a face, face distance: %f", dist_face);
+    for (jint i = 0; i < n; i++) {
+        pLabels[i] = hasClasses ? pFacebase->classes(pIndices[i]) : 0;
+        LOGI("dist[%d]: %f, label: %d", pIndices[i], pDistances[i], pLabels[i]);
+    }
+    logPartialDistStats(*pFacebase);
+
+    env->ReleaseIntArrayElements(labels, pLabels, 0); // Copy back the content and free the buffer
+    env->ReleaseFloatArrayElements(distances, pDistances, 0);
+    env->ReleaseIntArrayElements(indices, pIndices, 0);
+    return n;
+}
+
 /*
 static inline void convertYUVToRGBA(uint8_t y, uint8_t u, uint8_t v, uint8_t *buf) __attribute__((always_inline));
 
@@ -35,33 +35,51 @@ public class NativeMethods {
         System.loadLibrary("face-lib");
     }
 
-    public static class TrainFacesTask extends AsyncTask<Void, Void, Boolean> {
+    public static class TrainFacesTask extends AsyncTask<Void, Integer, Boolean> {
+        private final long engine;
         private final Mat images, classes;
+        private final String                                    modelPath, eigenfacesModelPath;
         private final Callback                                  callback;
         private       FaceRecognizeHelper.TrainFacesTipCallBack trainFacesTipCallBack;
         private       Exception                                 error;
 
         public interface Callback {
             void onTrainFacesComplete(boolean result,FaceRecognizeHelper.TrainFacesTipCallBack trainFacesTipCallBack);
+
+            /**
+             * Called when Eigenfaces using the components found so far have been published while training progressively.
+             * See {@link NativeMethods#setProgressive(long, boolean, int)}.
+             * @param numComponents Number of components in the published model.
+             * @param time          Time since training started in ms.
+             */
+            void onTrainFacesStage(int numComponents, int time, FaceRecognizeHelper.TrainFacesTipCallBack trainFacesTipCallBack);
         }
 
         /**
          * Constructor used for Eigenfaces.
-         * @param images Matrix containing all images as column vectors.
+         * @param engine    Handle returned by {@link NativeMethods#createEngine()}.
+         * @param images    Matrix containing all images as row vectors.
+         * @param modelPath Path the trained model is written to. Set to null if the model should not be stored.
          */
-        public TrainFacesTask(FaceRecognizeHelper.TrainFacesTipCallBack trainFacesTipCallBack,Mat images, Callback callback) {
-            this(trainFacesTipCallBack,images, null, callback);
+        public TrainFacesTask(long engine, FaceRecognizeHelper.TrainFacesTipCallBack trainFacesTipCallBack,Mat images, String modelPath, Callback callback) {
+            this(engine, trainFacesTipCallBack,images, null, modelPath, null, callback);
         }
 
         /**
-         * Constructor used for Fisherfaces.
-         * @param images  Matrix containing all images as column vectors.
-         * @param classes Vector containing classes for each image.
+         * Constructor used for Fisherfaces. Eigenfaces are trained from the same PCA, so both algorithms are available afterwards.
+         * @param engine              Handle returned by {@link NativeMethods#createEngine()}.
+         * @param images              Matrix containing all images as row vectors.
+         * @param classes             Vector containing classes for each image.
+         * @param modelPath           Path the trained Fisherfaces model is written to. Set to null if the model should not be stored.
+         * @param eigenfacesModelPath Path the trained Eigenfaces model is written to. Set to null if the model should not be stored.
          */
-        public TrainFacesTask(FaceRecognizeHelper.TrainFacesTipCallBack trainFacesTipCallBack, Mat images, Mat classes, Callback callback) {
+        public TrainFacesTask(long engine, FaceRecognizeHelper.TrainFacesTipCallBack trainFacesTipCallBack, Mat images, Mat classes, String modelPath, String eigenfacesModelPath, Callback callback) {
+            this.engine = engine;
             this.trainFacesTipCallBack = trainFacesTipCallBack;
             this.images = images;
             this.classes = classes;
+            this.modelPath = modelPath;
+            this.eigenfacesModelPath = eigenfacesModelPath;
             this.callback = callback;
         }
 
@@ -69,41 +87,241 @@ public class NativeMethods {
         protected Boolean doInBackground(Void... params) {
             try {
                 if (classes == null)
-                    TrainFaces(images.getNativeObjAddr(), 0); // Train Eigenfaces
-                else
-                    TrainFaces(images.getNativeObjAddr(), classes.getNativeObjAddr()); // Train Fisherfaces
-                return true;
+                    return TrainFaces(engine, images.getNativeObjAddr(), 0, modelPath, null, this); // Train Eigenfaces
+                return TrainFaces(engine, images.getNativeObjAddr(), classes.getNativeObjAddr(), modelPath, eigenfacesModelPath, this); // Train Fisherfaces and Eigenfaces
             } catch (Exception e) {
                 error = e;
                 return false;
             }
         }
 
+        /**
+         * Called by the native code from the background thread each time a model has been published while training.
+         * The method is only referenced by the native code, so it is kept by proguard-rules.pro.
+         * @param numComponents Number of components in the published model.
+         * @param time          Time since training started in ms.
+         */
+        private void onStage(int numComponents, float time) {
+            publishProgress(numComponents, Math.round(time));
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            callback.onTrainFacesStage(values[0], values[1], trainFacesTipCallBack);
+        }
+
         @Override
         protected void onPostExecute(Boolean result) {
             callback.onTrainFacesComplete(result,trainFacesTipCallBack);
             if (result)
                 Log.i(TAG, "Done training images");
+            else if (error != null)
+                Log.e(TAG, error.getMessage());
             else
+                Log.e(TAG, "The memory budget is too small to train the images");
+        }
+    }
+
+    public static class UpdateFacesTask extends AsyncTask<Void, Void, Boolean> {
+        private final long engine;
+        private final Mat images, classes;
+        private final int      numRemoved;
+        private final String   modelPath;
+        private final Callback callback;
+        private       Exception error;
+
+        public interface Callback {
+            void onUpdateFacesComplete(boolean result);
+        }
+
+        /**
+         * Constructor used for Eigenfaces.
+         * @param engine    Handle returned by {@link NativeMethods#createEngine()}.
+         * @param images    Matrix containing all images as row vectors. The last row is the new image.
+         * @param modelPath Path the updated model is written to. Set to null if the model should not be stored.
+         */
+        public UpdateFacesTask(long engine, Mat images, String modelPath, Callback callback) {
+            this(engine, images, null, 0, modelPath, callback);
+        }
+
+        /**
+         * Constructor used for Fisherfaces.
+         * @param engine     Handle returned by {@link NativeMethods#createEngine()}.
+         * @param images     Matrix containing all images as row vectors. The last row is the new image.
+         * @param classes    Vector containing classes for each image.
+         * @param numRemoved Number of images removed from the start of the list since the model was trained.
+         * @param modelPath  Path the updated model is written to. Set to null if the model should not be stored.
+         */
+        public UpdateFacesTask(long engine, Mat images, Mat classes, int numRemoved, String modelPath, Callback callback) {
+            this.engine = engine;
+            this.images = images;
+            this.classes = classes;
+            this.numRemoved = numRemoved;
+            this.modelPath = modelPath;
+            this.callback = callback;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            try {
+                return UpdateFaces(engine, images.getNativeObjAddr(), classes == null ? 0 : classes.getNativeObjAddr(), numRemoved, modelPath);
+            } catch (Exception e) {
+                error = e;
+                return false;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean result) {
+            callback.onUpdateFacesComplete(result);
+            if (result)
+                Log.i(TAG, "Done updating faces");
+            else if (error != null)
                 Log.e(TAG, error.getMessage());
+            else
+                Log.i(TAG, "Faces need to be retrained");
+        }
+    }
+
+    public static class EnrollFaceTask extends AsyncTask<Void, Void, Integer> {
+        public static final int ENROLL_FAILED = -1;
+        public static final int ENROLLED = 0;
+        public static final int ENROLLED_RETRAIN = 1;
+
+        private final long engine;
+        private final Mat images, classes;
+        private final int      numRemoved;
+        private final float    maxDrift;
+        private final String   modelPath;
+        private final Callback callback;
+        private       Exception error;
+
+        public interface Callback {
+            void onEnrollFaceComplete(int result);
+        }
+
+        /**
+         * Enroll the last image by projecting it onto the trained subspace without retraining.
+         * @param engine     Handle returned by {@link NativeMethods#createEngine()}.
+         * @param images     Matrix containing all images as row vectors. The last row is the new image.
+         * @param classes    Vector containing classes for each image. Set to null for Eigenfaces.
+         * @param numRemoved Number of images removed from the start of the list since the model was trained.
+         * @param maxDrift   Drift of the enrolled images at which the model should be retrained.
+         * @param modelPath  Path the updated model is written to. Set to null if the model should not be stored.
+         */
+        public EnrollFaceTask(long engine, Mat images, Mat classes, int numRemoved, float maxDrift, String modelPath, Callback callback) {
+            this.engine = engine;
+            this.images = images;
+            this.classes = classes;
+            this.numRemoved = numRemoved;
+            this.maxDrift = maxDrift;
+            this.modelPath = modelPath;
+            this.callback = callback;
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            try {
+                return EnrollFace(engine, images.getNativeObjAddr(), classes == null ? 0 : classes.getNativeObjAddr(), numRemoved, maxDrift, modelPath);
+            } catch (Exception e) {
+                error = e;
+                return ENROLL_FAILED;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer result) {
+            callback.onEnrollFaceComplete(result);
+            if (result != ENROLL_FAILED)
+                Log.i(TAG, "Done enrolling face");
+            else if (error != null)
+                Log.e(TAG, error.getMessage());
+            else
+                Log.i(TAG, "Face could not be enrolled");
+        }
+    }
+
+    public static class LoadModelTask extends AsyncTask<Void, Void, Boolean> {
+        private final long engine;
+        private final Mat images, classes;
+        private final String   modelPath;
+        private final Callback callback;
+        private       Exception error;
+
+        public interface Callback {
+            void onLoadModelComplete(boolean result);
+        }
+
+        /**
+         * Load a model stored by {@link TrainFacesTask}.
+         * @param engine    Handle returned by {@link NativeMethods#createEngine()}.
+         * @param modelPath Path to the model.
+         * @param images    Matrix containing all images as row vectors.
+         *                  The model is only loaded if it was trained on exactly these images.
+         * @param classes   Vector containing classes for each image. Set to null for Eigenfaces.
+         */
+        public LoadModelTask(long engine, String modelPath, Mat images, Mat classes, Callback callback) {
+            this.engine = engine;
+            this.modelPath = modelPath;
+            this.images = images;
+            this.classes = classes;
+            this.callback = callback;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            try {
+                return LoadModel(engine, modelPath, images.getNativeObjAddr(), classes == null ? 0 : classes.getNativeObjAddr());
+            } catch (Exception e) {
+                error = e;
+                return false;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean result) {
+            callback.onLoadModelComplete(result);
+            if (result)
+                Log.i(TAG, "Done loading model");
+            else if (error != null)
+                Log.e(TAG, error.getMessage());
+            else
+                Log.i(TAG, "No valid model found");
         }
     }
 
     public static class MeasureDistTask extends AsyncTask<Mat, Void, Bundle> {
         public static final String MIN_DIST_FLOAT = "minDist";
         public static final String MIN_DIST_INDEX_INT = "minDistIndex";
+        public static final String MIN_DIST_LABEL_INT = "minDistLabel";
         public static final String DIST_FACE_FLOAT = "distFace";
 
         private final Callback callback;
-        private final boolean useEigenfaces;
+        private final long engine;
+        private final float faceThreshold;
+        private final int ef;
         private Exception error;
 
         public interface Callback {
             void onMeasureDistComplete(Bundle bundle);
         }
 
-        public MeasureDistTask(boolean useEigenfaces, Callback callback) {
-            this.useEigenfaces = useEigenfaces;
+        public MeasureDistTask(long engine, Callback callback) {
+            this(engine, Float.POSITIVE_INFINITY, 0, callback);
+        }
+
+        /**
+         * @param engine        Handle returned by {@link NativeMethods#createEngine()}. The algorithm selected using
+         *                      {@link NativeMethods#setUseEigenfaces(long, boolean)} is used.
+         * @param faceThreshold If the distance to the face subspace exceeds this, then the image is not compared with
+         *                      the trained images and the minimum distance is set to {@link Float#POSITIVE_INFINITY}.
+         * @param ef            Number of candidates considered when searching the index of a large gallery.
+         *                      Set to 0 in order to always compare with all images.
+         */
+        public MeasureDistTask(long engine, float faceThreshold, int ef, Callback callback) {
+            this.engine = engine;
+            this.faceThreshold = faceThreshold;
+            this.ef = ef;
             this.callback = callback;
         }
 
@@ -111,9 +329,10 @@ public class NativeMethods {
         protected Bundle doInBackground(Mat... mat) {
             float[] minDist = new float[] { -1 };
             int[] minDistIndex = new int[1];
+            int[] minDistLabel = new int[1];
             float[] faceDist = new float[1];
             try {
-                MeasureDist(mat[0].getNativeObjAddr(), minDist, minDistIndex, faceDist, useEigenfaces);
+                MeasureDist(engine, mat[0].getNativeObjAddr(), minDist, minDistIndex, minDistLabel, faceDist, faceThreshold, ef);
             } catch (Exception e) {
                 error = e;
                 return null;
@@ -121,6 +340,7 @@ public class NativeMethods {
             Bundle bundle = new Bundle();
             bundle.putFloat(MIN_DIST_FLOAT, minDist[0]);
             bundle.putInt(MIN_DIST_INDEX_INT, minDistIndex[0]);
+            bundle.putInt(MIN_DIST_LABEL_INT, minDistLabel[0]);
             bundle.putFloat(DIST_FACE_FLOAT, faceDist[0]);
             return bundle;
         }
@@ -135,24 +355,380 @@ public class NativeMethods {
         }
     }
 
+    public static class NearestFacesTask extends AsyncTask<Mat, Void, Integer> {
+        private final Callback callback;
+        private final long engine;
+        private final float faceThreshold;
+        private final int ef;
+        private final int[] indices, labels;
+        private final float[] distances;
+        private final float[] faceDist = new float[1];
+        private Exception error;
+
+        public interface Callback {
+            /**
+             * @param count     Number of nearest images found. This is 0 if the image is not a face and -1 if an error occurred.
+             * @param indices   Indices of the nearest images sorted by increasing distance.
+             * @param distances Distances to the nearest images.
+             * @param labels    Class of the nearest images starting at 1. This is 0 if the model was trained without classes.
+             * @param faceDist  Distance to facespace.
+             */
+            void onNearestFacesComplete(int count, int[] indices, float[] distances, int[] labels, float faceDist);
+        }
+
+        /**
+         * Find the nearest images to the image.
+         * @param engine        Handle returned by {@link NativeMethods#createEngine()}. The algorithm selected using
+         *                      {@link NativeMethods#setUseEigenfaces(long, boolean)} is used.
+         * @param k             Number of nearest images to find.
+         * @param faceThreshold If the distance to facespace exceeds this, then no images are returned.
+         * @param ef            Number of candidates considered when searching the index of a large gallery.
+         *                      Set to 0 in order to always compare with all images.
+         */
+        public NearestFacesTask(long engine, int k, float faceThreshold, int ef, Callback callback) {
+            this.engine = engine;
+            this.faceThreshold = faceThreshold;
+            this.ef = ef;
+            this.indices = new int[k];
+            this.distances = new float[k];
+            this.labels = new int[k];
+            this.callback = callback;
+        }
+
+        @Override
+        protected Integer doInBackground(Mat... mat) {
+            try {
+                return NearestFaces(engine, mat[0].getNativeObjAddr(), indices, distances, labels, faceDist, faceThreshold, ef);
+            } catch (Exception e) {
+                error = e;
+                return -1;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer count) {
+            callback.onNearestFacesComplete(count, indices, distances, labels, faceDist[0]);
+            if (count >= 0)
+                Log.i(TAG, "Done finding nearest faces");
+            else
+                Log.e(TAG, error.getMessage());
+        }
+    }
+
+    /**
+     * Create a recognition engine. Each engine owns its models, so several engines can be used independently.
+     * @return Handle passed to the tasks and settings of the engine.
+     */
+    public static long createEngine() {
+        return CreateEngine();
+    }
+
+    /**
+     * Free the models of an engine. No tasks using the engine may be running, see FaceRecognizeHelper#release().
+     * @param engine Handle returned by {@link #createEngine()}.
+     */
+    public static void destroyEngine(long engine) {
+        DestroyEngine(engine);
+    }
+
+    /**
+     * Select the model used by {@link MeasureDistTask} and {@link NearestFacesTask}.
+     * Both models are trained together, so this does not require the faces to be retrained.
+     * @param engine        Handle returned by {@link #createEngine()}.
+     * @param useEigenfaces Set to true if Eigenfaces are used. If set to false, then Fisherfaces will be used.
+     */
+    public static void setUseEigenfaces(long engine, boolean useEigenfaces) {
+        SetUseEigenfaces(engine, useEigenfaces);
+    }
+
+    /**
+     * Set the number of threads used for training and projection. This is shared by all engines.
+     * @param numThreads Number of threads. If this is zero or negative, then all cores are used.
+     */
+    public static void setNumThreads(int numThreads) {
+        SetNumThreads(numThreads);
+    }
+
+    /**
+     * Scan an 8-bit copy of the weights when measuring the distances to the images.
+     * The nearest candidates are re-ranked using the exact weights.
+     * @param engine Handle returned by {@link #createEngine()}.
+     * @param quantized Set to true in order to quantize the weights.
+     */
+    public static void setQuantized(long engine, boolean quantized) {
+        SetQuantized(engine, quantized);
+    }
+
+    /**
+     * Accumulate the distances to the images in blocks of components and abandon an image as soon as
+     * it can not be among the nearest. The average number of components touched is written to the log.
+     * @param engine Handle returned by {@link #createEngine()}.
+     * @param earlyAbandon Set to true in order to use the partial distance search.
+     */
+    public static void setEarlyAbandon(long engine, boolean earlyAbandon) {
+        SetEarlyAbandon(engine, earlyAbandon);
+    }
+
+    /**
+     * Train a low resolution model alongside the full resolution model. Every image is first compared using the
+     * low resolution model, and only the shortlist is compared using the full resolution model.
+     * The time spent in each stage is written to the log. The models must be retrained or reloaded after enabling this.
+     * @param engine Handle returned by {@link #createEngine()}.
+     * @param shortlistSize Number of images compared using the full resolution model. Set to 0 in order to disable the cascade.
+     */
+    public static void setCascade(long engine, int shortlistSize) {
+        SetCascade(engine, shortlistSize);
+    }
+
+    /**
+     * Compare images with the centroid of each class instead of all images. This requires the model to be trained with
+     * classes, so it is only used for Fisherfaces. The class is returned in {@link MeasureDistTask#MIN_DIST_LABEL_INT}.
+     * @param engine             Handle returned by {@link #createEngine()}.
+     * @param enabled            Set to true in order to match the classes.
+     * @param prototypesPerClass Number of images of each class used as prototypes in addition to the centroid.
+     * @param recheck            Compare with the images of the nearest class, so the index of the nearest image is returned as well.
+     *                           Otherwise the index is set to -1.
+     */
+    public static void setClassMatching(long engine, boolean enabled, int prototypesPerClass, boolean recheck) {
+        SetClassMatching(engine, enabled, prototypesPerClass, recheck);
+    }
+
+    /**
+     * Store the eigenvectors used for recognition in half precision, which halves the memory used by them.
+     * The distances are calculated in single precision, so the results only differ slightly.
+     * The models used for training are kept in single precision, so this can be changed without retraining.
+     * @param engine        Handle returned by {@link #createEngine()}.
+     * @param halfPrecision Set to true in order to store the eigenvectors in half precision.
+     */
+    public static void setHalfPrecision(long engine, boolean halfPrecision) {
+        SetHalfPrecision(engine, halfPrecision);
+    }
+
+    /**
+     * Limit the memory used for the temporary matrices while training. The images are processed in blocks small enough
+     * to fit in the budget, so a smaller budget only makes training slower until the budget can not hold the Gram matrix
+     * of the images, then {@link TrainFacesTask} fails. The memory is kept between trainings when a budget is set.
+     * @param engine Handle returned by {@link #createEngine()}.
+     * @param bytes  Maximum number of bytes. Set to 0 in order to disable the budget.
+     */
+    public static void setMemoryBudget(long engine, long bytes) {
+        SetMemoryBudget(engine, bytes);
+    }
+
+    /**
+     * Publish Eigenfaces while training, so faces can be recognized before training is done. The first model uses a few
+     * components found by a cheap randomized PCA, after which a model is published each time the number of converged
+     * components has doubled. Every stage is reported to {@link TrainFacesTask.Callback#onTrainFacesStage}.
+     * Fisherfaces need the complete PCA, so the published Eigenfaces are used until Fisherfaces have been trained.
+     * @param engine            Handle returned by {@link #createEngine()}.
+     * @param enabled           Set to true in order to train progressively.
+     * @param initialComponents Number of components in the first model. Set to 0 in order to wait for the exact components.
+     */
+    public static void setProgressive(long engine, boolean enabled, int initialComponents) {
+        SetProgressive(engine, enabled, initialComponents);
+    }
+
+    /**
+     * Keep the data needed to update Fisherfaces incrementally in {@link UpdateFacesTask}. When disabled, the PCA
+     * eigenvectors, the PCA weights and the scatter matrices are released after training, which saves memory,
+     * but {@link UpdateFacesTask} then reports that Fisherfaces have to be retrained. Enabled by default.
+     * @param engine  Handle returned by {@link #createEngine()}.
+     * @param enabled Set to false in order to release the data after training.
+     */
+    public static void setIncrementalUpdates(long engine, boolean enabled) {
+        SetIncrementalUpdates(engine, enabled);
+    }
+
+    /**
+     * Start training from the eigenvectors of the previous training, so retraining after a small part of the gallery
+     * has changed usually only takes one or two iterations instead of computing the eigenvectors from scratch.
+     * Training falls back to computing them from scratch if the gallery has changed too much.
+     * @param engine  Handle returned by {@link #createEngine()}.
+     * @param enabled Set to true in order to warm start training.
+     */
+    public static void setWarmStart(long engine, boolean enabled) {
+        SetWarmStart(engine, enabled);
+    }
+
+    /**
+     * Allocate an engine with untrained models.
+     * @return Address of the engine.
+     */
+    private static native long CreateEngine();
+
+    /**
+     * Free an engine allocated by {@link #CreateEngine()}.
+     * @param engine Address of the engine.
+     */
+    private static native void DestroyEngine(long engine);
+
+    /**
+     * Select the model used for recognition by the engine.
+     * @param engine        Address of the engine.
+     * @param useEigenfaces Set to true if Eigenfaces are used. If set to false, then Fisherfaces will be used.
+     */
+    private static native void SetUseEigenfaces(long engine, boolean useEigenfaces);
+
+    /**
+     * Set the number of threads used by Eigen and the parallel loops in the native library.
+     * @param numThreads Number of threads. If this is zero or negative, then all cores are used.
+     */
+    private static native void SetNumThreads(int numThreads);
+
+    /**
+     * Keep an 8-bit copy of the weights for both Eigenfaces and Fisherfaces.
+     * @param engine    Address of the engine.
+     * @param quantized Set to true in order to quantize the weights.
+     */
+    private static native void SetQuantized(long engine, boolean quantized);
+
+    /**
+     * Use the partial distance search for both Eigenfaces and Fisherfaces. This resets the counters of the search.
+     * @param engine       Address of the engine.
+     * @param earlyAbandon Set to true in order to use the partial distance search.
+     */
+    private static native void SetEarlyAbandon(long engine, boolean earlyAbandon);
+
+    /**
+     * Enable the coarse-to-fine cascade for both Eigenfaces and Fisherfaces.
+     * @param engine        Address of the engine.
+     * @param shortlistSize Number of images compared using the full resolution model. Set to 0 in order to disable the cascade.
+     */
+    private static native void SetCascade(long engine, int shortlistSize);
+
+    /**
+     * Enable class matching for both Eigenfaces and Fisherfaces.
+     * @param engine             Address of the engine.
+     * @param enabled            Set to true in order to match the classes.
+     * @param prototypesPerClass Number of images of each class used as prototypes in addition to the centroid.
+     * @param recheck            Compare with the images of the nearest class.
+     */
+    private static native void SetClassMatching(long engine, boolean enabled, int prototypesPerClass, boolean recheck);
+
+    /**
+     * Store the eigenvectors of the models used for recognition in half precision.
+     * @param engine        Address of the engine.
+     * @param halfPrecision Set to true in order to store the eigenvectors in half precision.
+     */
+    private static native void SetHalfPrecision(long engine, boolean halfPrecision);
+
+    /**
+     * Set the memory budget of the arena used while training.
+     * @param engine Address of the engine.
+     * @param bytes  Maximum number of bytes. Set to 0 in order to disable the budget.
+     */
+    private static native void SetMemoryBudget(long engine, long bytes);
+
+    /**
+     * Enable progressive training.
+     * @param engine            Address of the engine.
+     * @param enabled           Set to true in order to publish Eigenfaces while training.
+     * @param initialComponents Number of components found using a randomized PCA before the exact components.
+     */
+    private static native void SetProgressive(long engine, boolean enabled, int initialComponents);
+
+    /**
+     * Keep the data needed to update Fisherfaces incrementally.
+     * @param engine  Address of the engine.
+     * @param enabled Set to true in order to keep the data after training.
+     */
+    private static native void SetIncrementalUpdates(long engine, boolean enabled);
+
+    /**
+     * Enable warm started training.
+     * @param engine  Address of the engine.
+     * @param enabled Set to true in order to start training from the previous eigenvectors.
+     */
+    private static native void SetWarmStart(long engine, boolean enabled);
+
     /**
      * Train faces recognition.
-     * @param addrImages    Address for matrix containing all images as column vectors.
+     * @param engine        Address of the engine.
+     * @param addrImages    Address for matrix containing all images as row vectors.
      * @param addrClasses   Address for vector containing classes for each image.
      *                      This must be a incrementing list starting at 1.
      *                      If set to NULL, then Eigenfaces will be used.
+     *                      If this is set, then Fisherfaces will be used and Eigenfaces are trained from the same PCA.
+     * @param modelPath     Path the trained model is written to. If set to NULL, the model is not stored.
+     * @param eigenfacesModelPath Path the Eigenfaces trained alongside Fisherfaces are written to. If set to NULL, the model is not stored.
+     * @param task          Task the stages are reported to when training progressively. Set to null in order to only publish the final models.
+     * @return              Returns false if the memory budget is too small. The previous model is still used in that case.
+     */
+    private static native boolean TrainFaces(long engine, long addrImages, long addrClasses, String modelPath, String eigenfacesModelPath, TrainFacesTask task);
+
+    /**
+     * Add a single image to the trained model using an incremental update.
+     * @param engine        Address of the engine.
+     * @param addrImages    Address for matrix containing all images as row vectors.
+     *                      The last row is the new image, the others must be the images the model was trained on
+     *                      except the removed ones.
+     * @param addrClasses   Address for vector containing classes for each image.
+     *                      If set to NULL, then Eigenfaces will be used.
+     *                      If this is set, then Fisherfaces will be used.
+     * @param numRemoved    Number of images removed from the start since the model was trained.
+     *                      This is only supported by Fisherfaces.
+     * @param modelPath     Path the updated model is written to. If set to NULL, the model is not stored.
+     * @return              Returns false if the model could not be updated and needs to be retrained.
+     */
+    private static native boolean UpdateFaces(long engine, long addrImages, long addrClasses, int numRemoved, String modelPath);
+
+    /**
+     * Enroll a single image by projecting it onto the trained subspace and appending the weight.
+     * @param engine        Address of the engine.
+     * @param addrImages    Address for matrix containing all images as row vectors.
+     *                      The last row is the new image, the others must be the images the model was trained on
+     *                      except the removed ones.
+     * @param addrClasses   Address for vector containing classes for each image.
+     *                      If set to NULL, then Eigenfaces will be used.
      *                      If this is set, then Fisherfaces will be used.
+     * @param numRemoved    Number of images removed from the start since the model was trained.
+     * @param maxDrift      Drift of the recently enrolled images at which the model should be retrained.
+     * @param modelPath     Path the updated model is written to. If set to NULL, the model is not stored.
+     * @return              Returns {@link EnrollFaceTask#ENROLLED}, {@link EnrollFaceTask#ENROLLED_RETRAIN} if the
+     *                      drift is too large or {@link EnrollFaceTask#ENROLL_FAILED} if the image could not be enrolled.
      */
-    private static native void TrainFaces(long addrImages, long addrClasses);
+    private static native int EnrollFace(long engine, long addrImages, long addrClasses, int numRemoved, float maxDrift, String modelPath);
 
     /**
-     * Measure euclidean distance between the weight of the image compared to all weights.
+     * Load a model written by {@link #TrainFaces(long, long, long, String, String, TrainFacesTask)}.
+     * @param engine        Address of the engine.
+     * @param modelPath     Path to the model.
+     * @param addrImages    Address for matrix containing all images as row vectors.
+     * @param addrClasses   Address for vector containing classes for each image.
+     *                      If set to NULL, then Eigenfaces will be used.
+     *                      If this is set, then Fisherfaces will be used.
+     * @return              Returns true if the model was trained on the same images and classes and was loaded successfully.
+     */
+    private static native boolean LoadModel(long engine, String modelPath, long addrImages, long addrClasses);
+
+    /**
+     * Measure euclidean distance between the weight of the image compared to all weights using the selected model.
+     * @param engine        Address of the engine.
      * @param addrImage     Vector containing the image.
      * @param minDist       Returns a list of sorted distances to images
-     * @param minDistIndex  Returns the index of the closest distance
+     * @param minDistIndex  Returns the index of the closest distance. This is -1 if the classes are matched without rechecking the images.
+     * @param minDistLabel  Returns the class of the closest distance. This is 0 if the model was trained without classes.
      * @param faceDist      Retuns the distance to facespace
-     * @param useEigenfaces Set to true if Eigenfaces are used. If set to false,
-     *                      then Fisherfaces will be used.
+     * @param faceThreshold If the distance to facespace exceeds this, then the distances to the images are not measured
+     *                      and minDist is set to infinity.
+     * @param ef            Number of candidates considered when searching the HNSW index. The index is only built for large galleries.
+     *                      Set to 0 in order to always compare with all images.
+     */
+    private static native void MeasureDist(long engine, long addrImage, float[] minDist, int[] minDistIndex, int[] minDistLabel, float[] faceDist, float faceThreshold, int ef);
+
+    /**
+     * Find the nearest images using the selected model and a partial selection, so not all distances have to be sorted.
+     * @param engine        Address of the engine.
+     * @param addrImage     Vector containing the image.
+     * @param indices       Returns the indices of the nearest images sorted by increasing distance.
+     *                      The length of the array determines how many images are returned.
+     * @param distances     Returns the distances to the nearest images. Must be at least as long as indices.
+     * @param labels        Returns the classes of the nearest images. Must be at least as long as indices.
+     * @param faceDist      Returns the distance to facespace.
+     * @param faceThreshold If the distance to facespace exceeds this, then no images are returned.
+     * @param ef            Number of candidates considered when searching the HNSW index. The index is only built for large galleries.
+     *                      Set to 0 in order to always compare with all images.
+     * @return              Returns the number of images written to the arrays.
      */
-    private static native void MeasureDist(long addrImage, float[] minDist, int[] minDistIndex, float[] faceDist, boolean useEigenfaces);
+    private static native int NearestFaces(long engine, long addrImage, int[] indices, float[] distances, int[] labels, float[] faceDist, float faceThreshold, int ef);
 }
@@ -212,12 +212,12 @@ public class FaceRecognitionAppActivity extends AppCompatActivity implements Cam
 
         Log.i(TAG, "Number of images: " + images.size() + ". Number of labels: " + imagesLabels.size());
         if (!images.isEmpty()) {
-            mFaceRecognizeHelper.trainFaces(new FaceRecognizeHelper.TrainFacesTipCallBack() {
+            mFaceRecognizeHelper.loadModel(new FaceRecognizeHelper.TrainFacesTipCallBack() {
                 @Override
                 public void onHappenTip(int tipType, String tipMessage) {
                     showToast(FaceRecognitionAppActivity.this,tipMessage,Toast.LENGTH_LONG);
                 }
-            }); // Train images after they are loaded
+            }); // Load the stored model or train images after they are loaded
             Log.i(TAG, "Images height: " + images.get(0).height() + " Width: " + images.get(0).width() + " total: " + images.get(0).total());
         }
         Log.i(TAG, "Labels: " + imagesLabels);
@@ -262,14 +262,12 @@ public class FaceRecognitionAppActivity extends AppCompatActivity implements Cam
         mRadioButtonEigenfaces.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                mFaceRecognizeHelper.setUseEigenfaces(true);
-                if (!mFaceRecognizeHelper.trainFaces(new FaceRecognizeHelper.TrainFacesTipCallBack() {
+                if (!mFaceRecognizeHelper.switchAlgorithm(true, new FaceRecognizeHelper.TrainFacesTipCallBack() {
                     @Override
                     public void onHappenTip(int tipType, String tipMessage) {
                         showToast(FaceRecognitionAppActivity.this,tipMessage,Toast.LENGTH_LONG);
                     }
                 })) {
-                    mFaceRecognizeHelper.setUseEigenfaces(false); // Set variable back
                     showToast(FaceRecognitionAppActivity.this, "Still training...", Toast.LENGTH_SHORT);
                     mRadioButtonEigenfaces.setChecked(mFaceRecognizeHelper.isUseEigenfaces());
                     mRadioButtonFisherfaces.setChecked(!mFaceRecognizeHelper.isUseEigenfaces());
@@ -279,14 +277,12 @@ public class FaceRecognitionAppActivity extends AppCompatActivity implements Cam
         mRadioButtonFisherfaces.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                mFaceRecognizeHelper.setUseEigenfaces(false);
-                if (!mFaceRecognizeHelper.trainFaces(new FaceRecognizeHelper.TrainFacesTipCallBack() {
+                if (!mFaceRecognizeHelper.switchAlgorithm(false, new FaceRecognizeHelper.TrainFacesTipCallBack() {
                     @Override
                     public void onHappenTip(int tipType, String tipMessage) {
                         showToast(FaceRecognitionAppActivity.this,tipMessage,Toast.LENGTH_LONG);
                     }
                 })) {
-                    mFaceRecognizeHelper.setUseEigenfaces(true); // Set variable back
                     showToast(FaceRecognitionAppActivity.this, "Still training...", Toast.LENGTH_SHORT);
                     mRadioButtonEigenfaces.setChecked(mFaceRecognizeHelper.isUseEigenfaces());
                     mRadioButtonFisherfaces.setChecked(!mFaceRecognizeHelper.isUseEigenfaces());
@@ -447,6 +443,8 @@ public class FaceRecognitionAppActivity extends AppCompatActivity implements Cam
         super.onDestroy();
         if (mOpenCvCameraView != null)
             mOpenCvCameraView.disableView();
+        if (mFaceRecognizeHelper != null)
+            mFaceRecognizeHelper.release(); // Free the native models once the running tasks have finished
     }
 
     public void onCameraViewStarted(int width, int height) {
@@ -17,8 +17,9 @@ import org.opencv.core.Mat;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Locale;
 import java.util.Set;
 
@@ -33,8 +34,19 @@ public class FaceRecognizeHelper {
     private static final    String                        TAG = FaceRecognizeHelper.class.getSimpleName();
     private                 NativeMethods.MeasureDistTask mMeasureDistTask;
     private                 NativeMethods.TrainFacesTask  mTrainFacesTask;
+    private                 NativeMethods.LoadModelTask   mLoadModelTask;
+    private                 NativeMethods.UpdateFacesTask mUpdateFacesTask;
+    private                 NativeMethods.EnrollFaceTask  mEnrollFaceTask;
+    private                 long                          mEngine; // Handle of the native engine holding the models, which is created once the native library is loaded
+    private                 int                           mTrainedImages, mTrainingImages; // Number of images in the current model and in the model being trained
+    private                 int                           mRemovedImages; // Number of images removed from the start of the list since the model was trained
+    private                 boolean                       mBothTrained, mTrainingBoth; // Whether both Eigenfaces and Fisherfaces are in the current model and in the model being trained
     private                 Mat                           mRgba, mGray;
     private boolean           useEigenfaces;
+    private boolean           fastEnroll;
+    private float             maxDrift = 1.5f;
+    private boolean           skipNonFaces;
+    private int               searchEf = 64;
     private ArrayList<Mat>    images;
     private ArrayList<String> imagesLabels;
     private float             faceThreshold, distanceThreshold;
@@ -129,7 +141,80 @@ public class FaceRecognizeHelper {
         imagesLabels.add(label); // Add label to list of labels
         Log.i(TAG, "Label: " + label);
 
-        trainFaces(trainFacesTipCallBack); // When we have finished setting the label, then retrain faces
+        if (fastEnroll && enrollFace(trainFacesTipCallBack))
+            return;
+        if (!updateFaces(trainFacesTipCallBack))
+            trainFaces(trainFacesTipCallBack); // When we have finished setting the label, then retrain faces
+    }
+
+
+    /**
+     * Enroll the newest image by projecting it onto the trained subspace. The faces are retrained in the background
+     * when the subspace no longer describes the enrolled images.
+     *
+     * @return Returns false if the image can not be enrolled and the faces should be updated or retrained instead.
+     */
+    private boolean enrollFace(final TrainFacesTipCallBack trainFacesTipCallBack) {
+        if (mEngine == 0 || isTraining() || mTrainedImages == 0 || images.size() != mTrainedImages - mRemovedImages + 1)
+            return false;
+
+        Log.i(TAG, "Enrolling face");
+        mTrainingImages = images.size();
+        mBothTrained = false; // Only the selected model is updated
+        mEnrollFaceTask = new NativeMethods.EnrollFaceTask(mEngine, getImagesMatrix(), useEigenfaces ? null : getClassesVector(), mRemovedImages, maxDrift, getModelPath(), new NativeMethods.EnrollFaceTask.Callback() {
+            @Override
+            public void onEnrollFaceComplete(int result) {
+                mEnrollFaceTask = null; // The task is still marked as running until this callback returns
+                if (result == NativeMethods.EnrollFaceTask.ENROLL_FAILED) {
+                    trainFaces(trainFacesTipCallBack);
+                    return;
+                }
+                mTrainedImages = mTrainingImages;
+                if (result == NativeMethods.EnrollFaceTask.ENROLLED_RETRAIN) {
+                    Log.i(TAG, "Drift is too large, retraining faces");
+                    trainFaces(trainFacesTipCallBack);
+                } else
+                    trainFacesTipCallBack.onHappenTip(6, "Face enrolled");
+            }
+        });
+        mRemovedImages = 0;
+        mEnrollFaceTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR); // Do not block the recognition tasks, which use the serial executor
+        return true;
+    }
+
+
+    /**
+     * Add the newest image to the trained model without retraining all faces.
+     *
+     * @return Returns false if the model can not be updated incrementally and the faces should be retrained instead.
+     */
+    private boolean updateFaces(final TrainFacesTipCallBack trainFacesTipCallBack) {
+        if (mEngine == 0 || isTraining() || mTrainedImages == 0 || images.size() != mTrainedImages - mRemovedImages + 1)
+            return false; // Only supported when the only change is a newly added image and the removal of the oldest images
+
+        mTrainingImages = images.size();
+        mBothTrained = false; // Only the selected model is updated
+        NativeMethods.UpdateFacesTask.Callback callback = new NativeMethods.UpdateFacesTask.Callback() {
+            @Override
+            public void onUpdateFacesComplete(boolean result) {
+                mUpdateFacesTask = null; // The task is still marked as running until this callback returns
+                if (result) {
+                    mTrainedImages = mTrainingImages;
+                    trainFacesTipCallBack.onHappenTip(3, "Training complete");
+                } else
+                    trainFaces(trainFacesTipCallBack); // The accumulated error is too large, so retrain all faces
+            }
+        };
+        if (useEigenfaces) {
+            Log.i(TAG, "Updating Eigenfaces");
+            mUpdateFacesTask = new NativeMethods.UpdateFacesTask(mEngine, getImagesMatrix(), getModelPath(), callback);
+        } else {
+            Log.i(TAG, "Updating Fisherfaces");
+            mUpdateFacesTask = new NativeMethods.UpdateFacesTask(mEngine, getImagesMatrix(), getClassesVector(), mRemovedImages, getModelPath(), callback);
+        }
+        mRemovedImages = 0;
+        mUpdateFacesTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR); // Do not block the recognition tasks, which use the serial executor
+        return true;
     }
 
 
@@ -151,16 +236,87 @@ public class FaceRecognizeHelper {
     public void clearImagesAndLabels() {
         images.clear(); // Clear both arrays, when new instance is created
         imagesLabels.clear();
+        mTrainedImages = 0;
+        mRemovedImages = 0;
+        mBothTrained = false;
     }
 
     public void setUseEigenfaces(boolean useEigenfaces) {
         this.useEigenfaces = useEigenfaces;
+        if (mEngine != 0)
+            NativeMethods.setUseEigenfaces(mEngine, useEigenfaces);
     }
 
     public boolean isUseEigenfaces() {
         return useEigenfaces;
     }
 
+    /**
+     * Switch between Eigenfaces and Fisherfaces. Both models are trained in the same pass, so the faces are only
+     * retrained if the selected model is not up to date.
+     *
+     * @return Returns false if the faces need to be retrained, but a task is already running.
+     */
+    public boolean switchAlgorithm(boolean useEigenfaces, TrainFacesTipCallBack trainFacesTipCallBack) {
+        boolean previous = this.useEigenfaces;
+        setUseEigenfaces(useEigenfaces);
+        if (mBothTrained || (mTrainingBoth && mTrainFacesTask != null && mTrainFacesTask.getStatus() != AsyncTask.Status.FINISHED)) {
+            Log.i(TAG, "Switched to " + (useEigenfaces ? "Eigenfaces" : "Fisherfaces") + " without retraining");
+            return true;
+        }
+        if (!trainFaces(trainFacesTipCallBack)) {
+            setUseEigenfaces(previous); // Set variable back
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Enroll new images by projecting them onto the trained subspace instead of updating or retraining the model.
+     */
+    public void setFastEnroll(boolean fastEnroll) {
+        this.fastEnroll = fastEnroll;
+    }
+
+    public boolean isFastEnroll() {
+        return fastEnroll;
+    }
+
+    /**
+     * Set the drift at which fast enrollment retrains the faces.
+     * The drift is the distance to the face subspace of the recently enrolled images relative to the training images.
+     */
+    public void setMaxDrift(float maxDrift) {
+        this.maxDrift = maxDrift;
+    }
+
+    public float getMaxDrift() {
+        return maxDrift;
+    }
+
+    /**
+     * Do not compare images with the trained faces when the distance to the face space exceeds the face threshold.
+     */
+    public void setSkipNonFaces(boolean skipNonFaces) {
+        this.skipNonFaces = skipNonFaces;
+    }
+
+    public boolean isSkipNonFaces() {
+        return skipNonFaces;
+    }
+
+    /**
+     * Set the number of candidates considered when searching the index of a large gallery.
+     * Larger values are more accurate, but slower. Set to 0 in order to always compare with all images.
+     */
+    public void setSearchEf(int searchEf) {
+        this.searchEf = searchEf;
+    }
+
+    public int getSearchEf() {
+        return searchEf;
+    }
+
     public void faceRecognize(final Activity activity) {
         if (mGray == null) {
             return;
@@ -176,19 +332,9 @@ public class FaceRecognizeHelper {
             });
             return;
         }
-        if (mTrainFacesTask != null && mTrainFacesTask.getStatus() != AsyncTask.Status.FINISHED) {
-            Log.i(TAG, "mTrainFacesTask is still running");
-            activity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mFaceRecognizeCallBack.onRecognizeError(2, "Still training...");
-                }
-            });
-            return;
-        }
 
         Log.i(TAG, "Gray height: " + mGray.height() + " Width: " + mGray.width() + " total: " + mGray.total());
-        if (mGray.total() == 0)
+        if (mGray.total() == 0 || mEngine == 0)
             return;
 
         // Scale image in order to decrease computation time and make the image square,
@@ -208,11 +354,12 @@ public class FaceRecognizeHelper {
             if(!imagesLabels.isEmpty()){
                 imagesLabels.remove(0); // Remove first label
             }
+            mRemovedImages++;
             Log.i(TAG, "The number of images is limited to: " + images.size());
         }
 
         // Calculate normalized Euclidean distance
-        mMeasureDistTask = new NativeMethods.MeasureDistTask(useEigenfaces, measureDistTaskCallback);
+        mMeasureDistTask = new NativeMethods.MeasureDistTask(mEngine, skipNonFaces ? faceThreshold : Float.POSITIVE_INFINITY, searchEf, measureDistTaskCallback);
         mMeasureDistTask.execute(image);
     }
 
@@ -230,56 +377,184 @@ public class FaceRecognizeHelper {
         if (images.isEmpty())
             return true; // The array might be empty if the method is changed in the OnClickListener
 
-        if (mTrainFacesTask != null && mTrainFacesTask.getStatus() != AsyncTask.Status.FINISHED) {
-            Log.i(TAG, "mTrainFacesTask is still running");
+        if (mEngine == 0) {
+            Log.i(TAG, "The engine has been released");
             return false;
         }
 
-        Mat imagesMatrix = new Mat((int) images.get(0).total(), images.size(), images.get(0).type());
-        for (int i = 0; i < images.size(); i++)
-            images.get(i).copyTo(imagesMatrix.col(i)); // Create matrix where each image is represented as a column vector
+        if (isTraining()) {
+            Log.i(TAG, "mTrainFacesTask is still running");
+            return false;
+        }
 
-        Log.i(TAG, "Images height: " + imagesMatrix.height() + " Width: " + imagesMatrix.width() + " total: " + imagesMatrix.total());
+        Mat imagesMatrix = getImagesMatrix();
+        Mat classesVector = getClassesVector();
+        mTrainedImages = 0; // The current model is replaced
+        mTrainingImages = images.size();
+        mRemovedImages = 0;
+        mBothTrained = false;
+        mTrainingBoth = !useEigenfaces || uniqueLabels.length > 1; // Eigenfaces are trained from the PCA computed by Fisherfaces, which needs two different faces
 
         // Train the face recognition algorithms in an asynchronous task, so we do not skip any frames
-        if (useEigenfaces) {
+        if (!mTrainingBoth) {
             Log.i(TAG, "Training Eigenfaces");
             trainFacesTipCallBack.onHappenTip(1, "Training Eigenfaces");
 
-            mTrainFacesTask = new NativeMethods.TrainFacesTask(trainFacesTipCallBack, imagesMatrix, trainFacesTaskCallback);
+            mTrainFacesTask = new NativeMethods.TrainFacesTask(mEngine, trainFacesTipCallBack, imagesMatrix, getModelPath(true), trainFacesTaskCallback);
         } else {
-            Log.i(TAG, "Training Fisherfaces");
-            trainFacesTipCallBack.onHappenTip(2, "Training Fisherfaces");
-
-            Set<String> uniqueLabelsSet = new HashSet<>(imagesLabels); // Get all unique labels
-            uniqueLabels = uniqueLabelsSet.toArray(new String[uniqueLabelsSet.size()]); // Convert to String array, so we can read the values from the indices
-
-            int[] classesNumbers = new int[uniqueLabels.length];
-            for (int i = 0; i < classesNumbers.length; i++)
-                classesNumbers[i] = i + 1; // Create incrementing list for each unique label starting at 1
-
-            int[] classes = new int[imagesLabels.size()];
-            for (int i = 0; i < imagesLabels.size(); i++) {
-                String label = imagesLabels.get(i);
-                for (int j = 0; j < uniqueLabels.length; j++) {
-                    if (label.equals(uniqueLabels[j])) {
-                        classes[i] = classesNumbers[j]; // Insert corresponding number
-                        break;
+            Log.i(TAG, "Training Eigenfaces and Fisherfaces");
+            trainFacesTipCallBack.onHappenTip(useEigenfaces ? 1 : 2, "Training Eigenfaces and Fisherfaces");
+
+            mTrainFacesTask = new NativeMethods.TrainFacesTask(mEngine, trainFacesTipCallBack, imagesMatrix, classesVector, getModelPath(false), getModelPath(true), trainFacesTaskCallback);
+        }
+        mTrainFacesTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR); // Do not block the recognition tasks, which use the serial executor
+
+        return true;
+    }
+
+
+    /**
+     * Load the model stored after the last training, so the faces do not have to be retrained.
+     * The faces are trained instead if the stored model does not match the stored images.
+     *
+     * @return Returns false if the task is already running.
+     */
+    public boolean loadModel(final TrainFacesTipCallBack trainFacesTipCallBack) {
+        if (trainFacesTipCallBack == null) {
+            throw new RuntimeException("Must set trainFacesTipCallBack");
+        }
+
+        if (images.isEmpty())
+            return true;
+
+        if (mEngine == 0) {
+            Log.i(TAG, "The engine has been released");
+            return false;
+        }
+
+        if (isTraining()) {
+            Log.i(TAG, "mTrainFacesTask is still running");
+            return false;
+        }
+
+        Log.i(TAG, "Loading model");
+        mTrainingImages = images.size();
+        mRemovedImages = 0;
+        mBothTrained = false; // Only the selected model is loaded
+        mLoadModelTask = new NativeMethods.LoadModelTask(mEngine, getModelPath(), getImagesMatrix(), useEigenfaces ? null : getClassesVector(), new NativeMethods.LoadModelTask.Callback() {
+            @Override
+            public void onLoadModelComplete(boolean result) {
+                mLoadModelTask = null; // The task is still marked as running until this callback returns
+                if (result) {
+                    mTrainedImages = mTrainingImages;
+                    trainFacesTipCallBack.onHappenTip(5, "Model loaded");
+                } else
+                    trainFaces(trainFacesTipCallBack); // Fall back to training the faces
+            }
+        });
+        mLoadModelTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR); // Do not block the recognition tasks, which use the serial executor
+
+        return true;
+    }
+
+
+    /**
+     * Free the native engine and its models. The running tasks are cancelled, so their callbacks are not called.
+     * The native code can not be interrupted, so the engine is destroyed in the background once the tasks have finished.
+     * A new engine is created the next time OpenCV is loaded, after which the faces have to be loaded or trained again.
+     */
+    public void release() {
+        if (mEngine == 0)
+            return;
+        final long engine = mEngine;
+        mEngine = 0; // No new tasks are started using the engine
+        mTrainedImages = 0;
+        mBothTrained = false;
+
+        final AsyncTask<?, ?, ?>[] tasks = { mMeasureDistTask, mTrainFacesTask, mLoadModelTask, mUpdateFacesTask, mEnrollFaceTask };
+        for (AsyncTask<?, ?, ?> task : tasks) {
+            if (task != null)
+                task.cancel(false);
+        }
+        mMeasureDistTask = null;
+        mTrainFacesTask = null;
+        mLoadModelTask = null;
+        mUpdateFacesTask = null;
+        mEnrollFaceTask = null;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // A task is finished once its native call has returned and onCancelled() has been called
+                for (AsyncTask<?, ?, ?> task : tasks) {
+                    while (task != null && task.getStatus() != AsyncTask.Status.FINISHED) {
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return; // Leak the engine rather than freeing it while it is used
+                        }
                     }
                 }
+                NativeMethods.destroyEngine(engine);
+                Log.i(TAG, "Engine destroyed");
             }
+        }).start();
+    }
+
+
+    private boolean isTraining() {
+        return (mTrainFacesTask != null && mTrainFacesTask.getStatus() != AsyncTask.Status.FINISHED) ||
+                (mLoadModelTask != null && mLoadModelTask.getStatus() != AsyncTask.Status.FINISHED) ||
+                (mUpdateFacesTask != null && mUpdateFacesTask.getStatus() != AsyncTask.Status.FINISHED) ||
+                (mEnrollFaceTask != null && mEnrollFaceTask.getStatus() != AsyncTask.Status.FINISHED);
+    }
+
+
+    private String getModelPath() {
+        return getModelPath(useEigenfaces);
+    }
+
+    private String getModelPath(boolean eigenfaces) {
+        return new File(mContext.getFilesDir(), eigenfaces ? "eigenfaces.model" : "fisherfaces.model").getPath();
+    }
 
-            /*for (int i = 0; i < imagesLabels.size(); i++)
-                Log.i(TAG, "Classes: " + imagesLabels.get(i) + " = " + classes[i]);*/
 
-            Mat vectorClasses = new Mat(classes.length, 1, CvType.CV_32S); // CV_32S == int
-            vectorClasses.put(0, 0, classes); // Copy int array into a vector
+    private Mat getImagesMatrix() {
+        Mat imagesMatrix = new Mat(images.size(), (int) images.get(0).total(), images.get(0).type());
+        for (int i = 0; i < images.size(); i++)
+            images.get(i).reshape(0, 1).copyTo(imagesMatrix.row(i)); // Create matrix where each image is represented as a row vector, so the native code can use the images without copying them
+
+        Log.i(TAG, "Images height: " + imagesMatrix.height() + " Width: " + imagesMatrix.width() + " total: " + imagesMatrix.total());
+        return imagesMatrix;
+    }
 
-            mTrainFacesTask = new NativeMethods.TrainFacesTask(trainFacesTipCallBack, imagesMatrix, vectorClasses, trainFacesTaskCallback);
+
+    private Mat getClassesVector() {
+        Set<String> uniqueLabelsSet = new LinkedHashSet<>(imagesLabels); // Get all unique labels in the order they were added, so the class numbers stay the same when images are added
+        uniqueLabels = uniqueLabelsSet.toArray(new String[uniqueLabelsSet.size()]); // Convert to String array, so we can read the values from the indices
+
+        int[] classesNumbers = new int[uniqueLabels.length];
+        for (int i = 0; i < classesNumbers.length; i++)
+            classesNumbers[i] = i + 1; // Create incrementing list for each unique label starting at 1
+
+        int[] classes = new int[imagesLabels.size()];
+        for (int i = 0; i < imagesLabels.size(); i++) {
+            String label = imagesLabels.get(i);
+            for (int j = 0; j < uniqueLabels.length; j++) {
+                if (label.equals(uniqueLabels[j])) {
+                    classes[i] = classesNumbers[j]; // Insert corresponding number
+                    break;
+                }
+            }
         }
-        mTrainFacesTask.execute();
 
-        return true;
+        /*for (int i = 0; i < imagesLabels.size(); i++)
+            Log.i(TAG, "Classes: " + imagesLabels.get(i) + " = " + classes[i]);*/
+
+        Mat vectorClasses = new Mat(classes.length, 1, CvType.CV_32S); // CV_32S == int
+        vectorClasses.put(0, 0, classes); // Copy int array into a vector
+        return vectorClasses;
     }
 
 
@@ -326,6 +601,10 @@ public class FaceRecognizeHelper {
             switch (status) {
                 case LoaderCallbackInterface.SUCCESS:
                     NativeMethods.loadNativeLibraries(); // Load native libraries after(!) OpenCV initialization
+                    if (mEngine == 0) {
+                        mEngine = NativeMethods.createEngine();
+                        NativeMethods.setUseEigenfaces(mEngine, useEigenfaces);
+                    }
                     Log.i(TAG, "OpenCV loaded successfully");
                     if (mLoadOpenCVCallBack != null) {
                         mLoadOpenCVCallBack.onLoadOpenCVSuccess();
@@ -342,11 +621,19 @@ public class FaceRecognizeHelper {
     private NativeMethods.TrainFacesTask.Callback trainFacesTaskCallback = new NativeMethods.TrainFacesTask.Callback() {
         @Override
         public void onTrainFacesComplete(boolean result, TrainFacesTipCallBack trainFacesTipCallBack) {
-            if (result)
+            if (result) {
+                mTrainedImages = mTrainingImages;
+                mBothTrained = mTrainingBoth;
                 trainFacesTipCallBack.onHappenTip(3, "Training complete");
-            else
+            } else
                 trainFacesTipCallBack.onHappenTip(4, "Training failed");
         }
+
+        @Override
+        public void onTrainFacesStage(int numComponents, int time, TrainFacesTipCallBack trainFacesTipCallBack) {
+            Log.i(TAG, "Published " + numComponents + " components after " + time + " ms");
+            trainFacesTipCallBack.onHappenTip(7, "Recognizing using " + numComponents + " components while training");
+        }
     };
 
 
@@ -365,20 +652,28 @@ public class FaceRecognizeHelper {
             String resultMsg = null;
             if (minDist != -1) {
                 int minIndex = bundle.getInt(NativeMethods.MeasureDistTask.MIN_DIST_INDEX_INT);
+                int minLabel = bundle.getInt(NativeMethods.MeasureDistTask.MIN_DIST_LABEL_INT);
                 float faceDist = bundle.getFloat(NativeMethods.MeasureDistTask.DIST_FACE_FLOAT);
-                if (imagesLabels.size() > minIndex) { // Just to be sure
-                    Log.i(TAG, "dist[" + minIndex + "]: " + minDist + ", face dist: " + faceDist + ", label: " + imagesLabels.get(minIndex));
+                String label = null;
+                if (minLabel > 0 && uniqueLabels != null && minLabel <= uniqueLabels.length)
+                    label = uniqueLabels[minLabel - 1]; // The class is returned directly when the classes are matched
+                else if (minIndex >= 0 && imagesLabels.size() > minIndex) // Just to be sure
+                    label = imagesLabels.get(minIndex);
+                if (label != null) {
+                    Log.i(TAG, "dist[" + minIndex + "]: " + minDist + ", face dist: " + faceDist + ", label: " + label);
 
                     String minDistString = String.format(Locale.US, "%.4f", minDist);
                     String faceDistString = String.format(Locale.US, "%.4f", faceDist);
 
                     if (faceDist < faceThreshold && minDist < distanceThreshold) {// 1. Near face space and near a face class
                         recognizeSuccess = true;
-                        resultMsg = "Face detected: " + imagesLabels.get(minIndex) + ". Distance: " + minDistString;
+                        resultMsg = "Face detected: " + label + ". Distance: " + minDistString;
                     } else if (faceDist < faceThreshold) { // 2. Near face space but not near a known face class
                         resultMsg = "Unknown face. Face distance: " + faceDistString + ". Closest Distance: " + minDistString;
                     } else if (minDist < distanceThreshold) { // 3. Distant from face space and near a face class
                         resultMsg = "False recognition. Face distance: " + faceDistString + ". Closest Distance: " + minDistString;
+                    } else if (Float.isInfinite(minDist)) { // 4. Distant from face space, so it was not compared with the face classes
+                        resultMsg = "Image is not a face. Face distance: " + faceDistString;
                     } else { // 4. Distant from face space and not near a known face class.
                         resultMsg = "Image is not a face. Face distance: " + faceDistString + ". Closest Distance: " + minDistString;
                     }